@@ -0,0 +1,300 @@
+package schule;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+/**
+ * Benchmark suite over generated workloads, from scanning single formulae up to a full
+ * load, recalculate and save cycle of a random sheet. Run with ant bench; properties select and
+ * size the benchmarks, e.g. ant bench -Dbench.filter=recalc -Dbench.rows=100000:
+ * <pre>
+ * bench.filter      regular expression on the names of the benchmarks to run (all)
+ * bench.out         JSON file receiving the results (target/bench-results.json)
+ * bench.formulas    number of formulae per invocation of scan, parse and eval (1000)
+ * bench.terms       maximum number of terms of these formulae (32)
+ * bench.depth       length of the reference chain (100000)
+ * bench.fanin       number of cells read by each aggregate (100000)
+ * bench.aggregates  number of aggregates over them (1000)
+ * bench.rows        rows of the random sheet (20000)
+ * bench.cols        columns of the random sheet (10)
+ * bench.parallelism threads used to load and recalculate the random sheet (1)
+ * </pre>
+ * plus the settings of the Harness.
+ */
+public class Benchmarks {
+    static final int FORMULAS = Integer.getInteger("bench.formulas",1000);
+    static final int TERMS = Integer.getInteger("bench.terms",32);
+    static final int DEPTH = Integer.getInteger("bench.depth",100000);
+    static final int FANIN = Integer.getInteger("bench.fanin",100000);
+    static final int AGGREGATES = Integer.getInteger("bench.aggregates",1000);
+    static final int ROWS = Integer.getInteger("bench.rows",20000);
+    static final int COLS = Integer.getInteger("bench.cols",10);
+    static final int PARALLELISM = Integer.getInteger("bench.parallelism",1);
+
+    static List<Harness.Definition> definitions(){
+        var formulas = Map.of("formulas",""+FORMULAS,"terms",""+TERMS);
+        var sheet = Map.of("rows",""+ROWS,"cols",""+COLS,"parallelism",""+PARALLELISM);
+        var result = new ArrayList<Harness.Definition>();
+        result.add(new Harness.Definition("scan",formulas,() -> {
+            var input = ScanBenchmark.formulas(FORMULAS,TERMS,42);
+            return () -> {
+                int tokens = 0;
+                for (var f:input)
+                    tokens += Expr.scan(f).size();
+                return tokens;
+            };
+        }));
+        result.add(new Harness.Definition("parse",formulas,() -> {
+            var input = ScanBenchmark.formulas(FORMULAS,TERMS,42);
+            return () -> {
+                int hash = 0;
+                for (var f:input)
+                    hash += Expr.parse(f).hashCode();
+                return hash;
+            };
+        }));
+        result.add(new Harness.Definition("shuntyard",formulas,() -> {
+            // the shunting yard parser knows neither ranges nor aggregates, and traces to System.out
+            var input = arithmetic(FORMULAS,TERMS,42);
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            var ctx = new Expr.Context(){};
+            return () -> {
+                int hash = 0;
+                for (var f:input)
+                    hash += Expr.shuntyard(f,ctx).hashCode();
+                return hash;
+            };
+        }));
+        result.add(new Harness.Definition("eval.compiled",formulas,() -> evaluation(true)));
+        result.add(new Harness.Definition("eval.interpreted",formulas,() -> evaluation(false)));
+        result.add(new Harness.Definition("eval.calls",formulas,() -> {
+            // sums of calls of the built-in functions on cells
+            var s = new Spreadsheet();
+            var rnd = new Random(42);
+            for (int row=0;row<100;row++)
+                s.setFormula(row,0,Optional.of(new Expr.Const(1+rnd.nextInt(100))));
+            s.recalculate();
+            var formulae = new ArrayList<Expr>();
+            for (int i=0;i<FORMULAS;i++) {
+                var f = new StringBuilder();
+                int n = 1+rnd.nextInt(TERMS);
+                for (int t=0;t<n;t++){
+                    if (t>0) f.append('+');
+                    int a = 1+rnd.nextInt(100);
+                    switch (rnd.nextInt(3)){
+                        case 0: f.append("ABS(A").append(a).append(")"); break;
+                        case 1: f.append("MOD(A").append(a).append(",").append(1+rnd.nextInt(9)).append(")"); break;
+                        default: f.append("MOD(A").append(a).append("*3,A").append(1+rnd.nextInt(100)).append(")");
+                    }
+                }
+                formulae.add(Expr.parse(f.toString()));
+            }
+            return () -> {
+                int sum = 0;
+                for (var e:formulae)
+                    sum += e.compiled().eval(s);
+                return sum;
+            };
+        }));
+        result.add(new Harness.Definition("recalc.chain",Map.of("depth",""+DEPTH),() -> {
+            // A1 is a value, every further cell of column A adds 1 to the one above
+            var s = new Spreadsheet();
+            s.setFormula(0,0,Optional.of(new Expr.Const(0)));
+            for (int row=1;row<DEPTH;row++)
+                s.setFormula(row,0,Optional.of(Expr.parse("A"+row+"+1")));
+            s.recalculate();
+            return new Harness.Benchmark(){
+                int value=0;
+                public int run() throws Exception {
+                    s.setFormula(0,0,Optional.of(new Expr.Const(++value)));
+                    s.recalculate();
+                    return s.eval(DEPTH-1,0);
+                }
+            };
+        }));
+        result.add(new Harness.Definition("recalc.fanIn",Map.of("fanin",""+FANIN,"aggregates",""+AGGREGATES),() -> {
+            // column A holds values, column B overlapping aggregates reading most of them
+            var s = new Spreadsheet();
+            var rnd = new Random(42);
+            for (int row=0;row<FANIN;row++)
+                s.setFormula(row,0,Optional.of(new Expr.Const(rnd.nextInt(1000))));
+            for (int row=0;row<AGGREGATES;row++)
+                s.setFormula(row,1,Optional.of(Expr.parse("SUM(A"+(1+row%FANIN)+":A"+FANIN+")")));
+            s.recalculate();
+            return () -> {
+                s.setFormula(rnd.nextInt(FANIN),0,Optional.of(new Expr.Const(rnd.nextInt(1000))));
+                s.recalculate();
+                return s.eval(0,1);
+            };
+        }));
+        result.add(new Harness.Definition("recalc.random",sheet,() -> {
+            var file = randomSheet();
+            return new Harness.Benchmark(){
+                Spreadsheet s;
+                public void prepare() throws Exception {
+                    s = Spreadsheet.parseCSV(file.toString(),PARALLELISM,null);
+                }
+                public int run() {
+                    s.recalculate();
+                    return s.cells().rows();
+                }
+            };
+        }));
+        result.add(new Harness.Definition("csv.load",sheet,() -> {
+            var file = randomSheet();
+            return () -> Spreadsheet.parseCSV(file.toString(),PARALLELISM,null).cells().rows();
+        }));
+        result.add(new Harness.Definition("csv.save",sheet,() -> {
+            var s = Spreadsheet.parseCSV(randomSheet().toString(),PARALLELISM,null);
+            s.recalculate();
+            var out = temporary(".csv");
+            return () -> {
+                s.writeToCSV(out.toString());
+                return (int)Files.size(out);
+            };
+        }));
+        result.add(new Harness.Definition("workbook.read",sheet,() -> {
+            var s = Spreadsheet.parseCSV(randomSheet().toString(),PARALLELISM,null);
+            s.recalculate();
+            var file = temporary(".wb");
+            Workbook.write(s,file);
+            return () -> Workbook.read(file).cells().rows();
+        }));
+        result.add(new Harness.Definition("cycle.loadRecalcSave",sheet,() -> {
+            var file = randomSheet();
+            var out = temporary(".csv");
+            return () -> {
+                var s = Spreadsheet.parseCSV(file.toString(),PARALLELISM,null);
+                s.recalculate();
+                s.writeToCSV(out.toString());
+                return (int)Files.size(out);
+            };
+        }));
+        return result;
+    }
+    /**
+     * evaluates FORMULAS formulae of up to TERMS terms over the values in A1:A100
+     */
+    static Harness.Benchmark evaluation(boolean compiled) throws Exception {
+        var s = new Spreadsheet();
+        var rnd = new Random(42);
+        for (int row=0;row<100;row++)
+            s.setFormula(row,0,Optional.of(new Expr.Const(1+rnd.nextInt(100))));
+        s.recalculate();
+        var formulae = new ArrayList<Expr>();
+        for (int i=0;i<FORMULAS;i++) {
+            var f = new StringBuilder();
+            int n = 1+rnd.nextInt(TERMS);
+            for (int t=0;t<n;t++){
+                if (t>0) f.append("+-*".charAt(rnd.nextInt(3)));
+                switch (rnd.nextInt(4)){
+                    case 0: f.append(rnd.nextInt(1000)); break;
+                    case 1: f.append("A").append(1+rnd.nextInt(100)); break;
+                    case 2: f.append("(A").append(1+rnd.nextInt(100)).append("*").append(rnd.nextInt(9)).append(")"); break;
+                    default: f.append("SUM(A").append(1+rnd.nextInt(50)).append(":A").append(51+rnd.nextInt(50)).append(")");
+                }
+            }
+            formulae.add(Expr.parse(f.toString()));
+        }
+        return () -> {
+            int sum = 0;
+            for (var e:formulae)
+                sum += compiled ? e.compiled().eval(s) : e.eval(s);
+            return sum;
+        };
+    }
+    /**
+     * generates count formulae of up to terms terms built from numbers, references, + - * and brackets
+     */
+    static List<String> arithmetic(int count, int terms, long seed){
+        var rnd = new Random(seed);
+        var result = new ArrayList<String>(count);
+        for (int i=0;i<count;i++){
+            var f = new StringBuilder();
+            int n = 1+rnd.nextInt(terms);
+            for (int t=0;t<n;t++){
+                if (t>0) f.append("+-*".charAt(rnd.nextInt(3)));
+                switch (rnd.nextInt(3)){
+                    case 0: f.append(rnd.nextInt(1000)); break;
+                    case 1: f.append(Expr.Ref.columnName(rnd.nextInt(800))).append(1+rnd.nextInt(100000)); break;
+                    default: f.append("(B").append(1+rnd.nextInt(99)).append("-3)");
+                }
+            }
+            result.add(f.toString());
+        }
+        return result;
+    }
+    /**
+     * writes a random sheet of ROWS x COLS cells: a sixth of them empty, the others values, sums of
+     * a cell of an earlier row and a number, or sums over the 10 cells above
+     * @return the CSV file, which is deleted on exit
+     */
+    static Path randomSheet() throws Exception {
+        var rnd = new Random(42);
+        var file = temporary(".csv");
+        try (var out = new PrintStream(Files.newOutputStream(file))) {
+            for (int row=0;row<ROWS;row++) {
+                for (int col=0;col<COLS;col++) {
+                    if (col>0) out.print(';');
+                    switch (rnd.nextInt(6)){
+                        case 0: break;
+                        case 1:
+                        case 2: out.print(rnd.nextInt(2001)-1000); break;
+                        // a constant instead where there are too few rows above to refer to
+                        case 3:
+                            if (row>0) out.print("="+Expr.Ref.columnName(rnd.nextInt(COLS))+(1+rnd.nextInt(row))+"+"+rnd.nextInt(9));
+                            else out.print(7);
+                            break;
+                        case 4:
+                            if (row>=10) {
+                                var c = Expr.Ref.columnName(col);
+                                out.print("=SUM("+c+(row-9)+":"+c+row+")");
+                            }
+                            else out.print(7);
+                            break;
+                        default: out.print(7);
+                    }
+                }
+                out.println();
+            }
+        }
+        return file;
+    }
+    static Path temporary(String suffix) throws Exception {
+        var file = Files.createTempFile("bench",suffix);
+        file.toFile().deleteOnExit();
+        return file;
+    }
+    public static void main(String[] args) throws Exception {
+        var all = definitions();
+        if (args.length==2 && args[0].equals("--fork")) {
+            for (var d:all)
+                if (d.name().equals(args[1])) Harness.report(Harness.measure(d));
+            return;
+        }
+        var filter = System.getProperty("bench.filter",".*");
+        var out = Path.of(System.getProperty("bench.out","target/bench-results.json"));
+        var results = new ArrayList<String>();
+        for (var d:all) {
+            if (!d.name().matches(filter)) continue;
+            var forks = new ArrayList<double[]>();
+            if (Harness.FORKS==0) forks.add(Harness.measure(d));
+            for (int f=0;f<Harness.FORKS;f++)
+                forks.add(Harness.fork(d,Benchmarks.class.getName()));
+            var scores = forks.stream().flatMapToDouble(Arrays::stream).toArray();
+            double mean = Arrays.stream(scores).average().orElse(Double.NaN);
+            Harness.console.printf("%-22s %12.3f ± %8.3f ms/op  %s%n",d.name(),mean,Harness.error(scores,mean),d.params());
+            results.add(Harness.json(d,forks));
+        }
+        Harness.writeJson(out,results);
+        Harness.console.println("results written to "+out);
+    }
+}
@@ -0,0 +1,172 @@
+package schule;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Minimal benchmark harness in the manner of JMH, which is not available to this build: each
+ * benchmark runs in a JVM of its own (unless bench.forks=0), first for bench.warmup iterations,
+ * then for bench.iterations measured iterations of about bench.time milliseconds each. Every
+ * invocation is timed on its own, so work done in Benchmark.prepare is not measured. Scores are
+ * the average time per invocation, and are written as JSON in the format of JMH to bench.out.
+ */
+class Harness {
+    static final int WARMUP = Integer.getInteger("bench.warmup",3);
+    static final int ITERATIONS = Integer.getInteger("bench.iterations",5);
+    static final int TIME = Integer.getInteger("bench.time",1000);
+    static final int FORKS = Integer.getInteger("bench.forks",1);
+    /** marks the line by which a forked JVM reports its iteration scores */
+    private static final String RAW = "#raw ";
+    /** the original standard output, as benchmarks may silence System.out */
+    static final PrintStream console = System.out;
+    /** consumes the results of the benchmarks, so that the JIT cannot drop their work */
+    static volatile int sink;
+
+    /**
+     * a benchmark whose state has been set up, run once per invocation
+     */
+    interface Benchmark {
+        /** untimed preparation of the next invocation, e.g. loading the sheet to recalculate */
+        default void prepare() throws Exception {
+        }
+        int run() throws Exception;
+    }
+    @FunctionalInterface
+    interface Setup {
+        Benchmark create() throws Exception;
+    }
+    /**
+     * a named benchmark, with the values of the parameters its setup depends on
+     */
+    record Definition(String name, Map<String,String> params, Setup setup) {}
+
+    /**
+     * @return the scores of the measured iterations in ms per invocation
+     */
+    static double[] measure(Definition d) throws Exception {
+        var benchmark = d.setup().create();
+        for (int i=0;i<WARMUP;i++)
+            iteration(benchmark);
+        var scores = new double[ITERATIONS];
+        for (int i=0;i<ITERATIONS;i++)
+            scores[i] = iteration(benchmark);
+        return scores;
+    }
+    private static double iteration(Benchmark benchmark) throws Exception {
+        long budget = TIME*1_000_000L, spent = 0, started = System.nanoTime();
+        int invocations = 0;
+        // give up on the time budget if preparing takes far longer than the invocations themselves
+        while (spent<budget && (invocations==0 || System.nanoTime()-started<5*budget)) {
+            benchmark.prepare();
+            long t0 = System.nanoTime();
+            sink ^= benchmark.run();
+            spent += System.nanoTime()-t0;
+            invocations++;
+        }
+        return spent/1e6/invocations;
+    }
+    /**
+     * runs d in a new JVM with the same class path, JVM arguments and bench.* properties
+     * @return the scores reported by the forked JVM
+     */
+    static double[] fork(Definition d, String mainClass) throws IOException, InterruptedException {
+        var command = new ArrayList<String>();
+        command.add(Path.of(System.getProperty("java.home"),"bin","java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass);
+        command.add("--fork");
+        command.add(d.name());
+        var process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        double[] scores = null;
+        try (var out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            for (var line=out.readLine(); line!=null; line=out.readLine()) {
+                if (line.startsWith(RAW)) {
+                    var values = line.substring(RAW.length()).split(",");
+                    scores = new double[values.length];
+                    for (int i=0;i<values.length;i++)
+                        scores[i] = Double.parseDouble(values[i]);
+                }
+                else console.println(line);
+            }
+        }
+        if (process.waitFor()!=0 || scores==null)
+            throw new IOException("forked JVM for "+d.name()+" failed");
+        return scores;
+    }
+    /**
+     * reports scores from within a forked JVM
+     */
+    static void report(double[] scores){
+        console.println(RAW+Arrays.stream(scores).mapToObj(Double::toString).collect(Collectors.joining(",")));
+    }
+    /**
+     * @return the result of d as a JSON object in the format of JMH, scores per fork
+     */
+    static String json(Definition d, List<double[]> forks){
+        var all = forks.stream().flatMapToDouble(Arrays::stream).toArray();
+        double mean = Arrays.stream(all).average().orElse(Double.NaN);
+        double error = error(all,mean);
+        var params = d.params().entrySet().stream()
+            .map(e -> quote(e.getKey())+": "+quote(e.getValue()))
+            .collect(Collectors.joining(", "));
+        var raw = forks.stream()
+            .map(f -> Arrays.stream(f).mapToObj(Double::toString).collect(Collectors.joining(", ","[","]")))
+            .collect(Collectors.joining(", ","[","]"));
+        return "    {\n"
+            + "        \"benchmark\": "+quote("schule.Benchmarks."+d.name())+",\n"
+            + "        \"mode\": \"avgt\",\n"
+            + "        \"threads\": 1,\n"
+            + "        \"forks\": "+forks.size()+",\n"
+            + "        \"jvm\": "+quote(Path.of(System.getProperty("java.home"),"bin","java").toString())+",\n"
+            + "        \"vmVersion\": "+quote(System.getProperty("java.vm.version"))+",\n"
+            + "        \"warmupIterations\": "+WARMUP+",\n"
+            + "        \"warmupTime\": \""+TIME+" ms\",\n"
+            + "        \"measurementIterations\": "+ITERATIONS+",\n"
+            + "        \"measurementTime\": \""+TIME+" ms\",\n"
+            + "        \"params\": {"+params+"},\n"
+            + "        \"primaryMetric\": {\n"
+            + "            \"score\": "+mean+",\n"
+            + "            \"scoreError\": "+error+",\n"
+            + "            \"scoreConfidence\": ["+(mean-error)+", "+(mean+error)+"],\n"
+            + "            \"scoreUnit\": \"ms/op\",\n"
+            + "            \"rawData\": "+raw+"\n"
+            + "        }\n"
+            + "    }";
+    }
+    /**
+     * @return half the width of the 99.9% confidence interval of the mean, as reported by JMH
+     */
+    static double error(double[] scores, double mean){
+        int n = scores.length;
+        if (n<2) return Double.NaN;
+        double squares = 0;
+        for (var s:scores)
+            squares += (s-mean)*(s-mean);
+        return studentT999(n-1)*Math.sqrt(squares/(n-1)/n);
+    }
+    /** two sided 99.9% quantiles of Student's t distribution for 1..10 degrees of freedom */
+    private static final double[] T999 = {636.62,31.60,12.92,8.61,6.87,5.96,5.41,5.04,4.78,4.59};
+    private static double studentT999(int df){
+        // beyond 10 degrees of freedom the normal quantile is close enough
+        return df<=T999.length ? T999[df-1] : 3.29;
+    }
+    private static String quote(String s){
+        return "\""+s.replace("\\","\\\\").replace("\"","\\\"")+"\"";
+    }
+    static void writeJson(Path file, List<String> results) throws IOException {
+        if (file.getParent()!=null) Files.createDirectories(file.getParent());
+        Files.writeString(file,results.stream().collect(Collectors.joining(",\n","[\n","\n]\n")));
+    }
+}
@@ -0,0 +1,66 @@
+package schule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Measures parse throughput in formulas/second, once with the regex based scanner Expr.scanRegex
+ * (before) and once with the single pass scanner Expr.scan (after), each followed by the parser.
+ * Run with ant bench-scan
+ */
+public class ScanBenchmark {
+    /**
+     * generates count random formulas of up to terms terms, e.g. 17*B3+MAX(A1,C12)-(4/AB7)
+     */
+    static List<String> formulas(int count, int terms, long seed){
+        var rnd = new Random(seed);
+        var result = new ArrayList<String>(count);
+        for (int i=0;i<count;i++){
+            var f = new StringBuilder();
+            int n = 1+rnd.nextInt(terms);
+            for (int t=0;t<n;t++){
+                if (t>0) f.append("+-*/".charAt(rnd.nextInt(4)));
+                switch (rnd.nextInt(4)){
+                    case 0: f.append(rnd.nextInt(1000)); break;
+                    case 1: f.append(Expr.Ref.columnName(rnd.nextInt(800))).append(1+rnd.nextInt(100000)); break;
+                    case 2: f.append("MAX(A").append(1+rnd.nextInt(99)).append(", ").append(rnd.nextInt(9)).append(")"); break;
+                    default: f.append("(B").append(1+rnd.nextInt(99)).append(" - 3)");
+                }
+            }
+            result.add(f.toString());
+        }
+        return result;
+    }
+    static Expr parse(List<Expr.Token> tokens) throws Expr.Parser.Fail {
+        // the parser needs random access, scanRegex yields a LinkedList
+        return new Expr.Parser(new ArrayList<>(tokens)).expr();
+    }
+    /**
+     * @return formulas per second achieved by parsing all formulas rounds times with the given scanner
+     */
+    static double run(List<String> formulas, Function<String,List<Expr.Token>> scanner, int rounds) throws Exception {
+        long start = System.nanoTime();
+        int sink = 0;
+        for (int r=0;r<rounds;r++)
+            for (var f:formulas)
+                sink += parse(scanner.apply(f)).hashCode() & 1;
+        long nanos = System.nanoTime()-start;
+        if (sink==-1) System.out.println();
+        return formulas.size()*(double)rounds/nanos*1e9;
+    }
+    public static void main(String[] args) throws Exception {
+        int count = args.length>0 ? Integer.parseInt(args[0]) : 20000;
+        for (int terms : new int[]{4,32,256}) {
+            var formulas = formulas(count/terms*4,terms,42);
+            // warm up both paths before measuring
+            run(formulas,Expr::scanRegex,2);
+            run(formulas,Expr::scan,2);
+            double before = run(formulas,Expr::scanRegex,3);
+            double after = run(formulas,Expr::scan,3);
+            System.out.printf("up to %3d terms: regex scanner %,12.0f formulas/s, single pass scanner %,12.0f formulas/s (x%.1f)%n",
+                terms,before,after,after/before);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package schule;
+
+/**
+ * Aggregate functions over any mix of single values and ranges, e.g. SUM(A1:A100000,B7,3).
+ * Empty cells within ranges are skipped, but take part in SUM as 0. An error among the values makes
+ * the aggregate an error, the smallest one if there are several.
+ */
+public enum Aggregate {
+    SUM,
+    AVG,
+    MIN,
+    MAX,
+    COUNT;
+
+    /**
+     * @param name function name, in any case
+     * @return the aggregate called name, or null if there is none
+     */
+    public static Aggregate of(String name){
+        for (var a:values())
+            if (a.name().equalsIgnoreCase(name)) return a;
+        return null;
+    }
+    public Accumulator accumulator(){
+        return new Accumulator(this);
+    }
+    /**
+     * running state of one evaluation of an aggregate
+     */
+    public static final class Accumulator {
+        private final Aggregate kind;
+        private long sum=0;
+        private int count=0;
+        private int min=Integer.MAX_VALUE,max=Integer.MIN_VALUE;
+        /** smallest value added, an error if there is one among them */
+        private int lowest=Integer.MAX_VALUE;
+        private Accumulator(Aggregate kind){
+            this.kind=kind;
+        }
+        public void add(int value){
+            sum+=value;
+            count++;
+            min=Math.min(min,value);
+            max=Math.max(max,value);
+            lowest=Math.min(lowest,value);
+        }
+        /**
+         * adds a summary of several values at once, e.g. those of a ColumnIndex
+         */
+        public void addSummary(long sum, int count, int min, int max){
+            this.sum+=sum;
+            this.count+=count;
+            this.min=Math.min(this.min,min);
+            this.max=Math.max(this.max,max);
+            lowest=Math.min(lowest,min);
+        }
+        /**
+         * adds the cells values[from..to) whose state is CellStore.VALID; each aggregate gets its own
+         * branch free loop over the primitive arrays, which the JIT can unroll and vectorize
+         * @param values
+         * @param state
+         * @param from
+         * @param to
+         */
+        public void addAll(int[] values, byte[] state, int from, int to){
+            switch (kind){
+                case SUM:
+                    sum+=sum(values,from,to);
+                    break;
+                case COUNT:
+                    count+=count(state,from,to);
+                    break;
+                case AVG:
+                    sum+=sum(values,from,to);
+                    count+=count(state,from,to);
+                    break;
+                case MIN: {
+                    int m=min;
+                    for (int i=from;i<to;i++)
+                        m=Math.min(m,state[i]==CellStore.VALID ? values[i] : Integer.MAX_VALUE);
+                    min=m;
+                    lowest=Math.min(lowest,m);
+                    count+=count(state,from,to);
+                    break;
+                }
+                case MAX: {
+                    int m=max;
+                    for (int i=from;i<to;i++)
+                        m=Math.max(m,state[i]==CellStore.VALID ? values[i] : Integer.MIN_VALUE);
+                    max=m;
+                    count+=count(state,from,to);
+                    break;
+                }
+            }
+            // errors are the smallest values, which MIN has found already
+            if (kind!=MIN) lowest=Math.min(lowest,lowest(values,from,to));
+        }
+        private static long sum(int[] values, int from, int to){
+            long s=0;
+            // empty cells hold 0, so they need not be skipped
+            for (int i=from;i<to;i++)
+                s+=values[i];
+            return s;
+        }
+        private static int lowest(int[] values, int from, int to){
+            int m=Integer.MAX_VALUE;
+            // empty cells hold 0 and all others have been evaluated, except those of a cycle, whose
+            // readers are #CYCLE! anyway; so the states need not be looked at
+            for (int i=from;i<to;i++)
+                m=Math.min(m,values[i]);
+            return m;
+        }
+        private static int count(byte[] state, int from, int to){
+            int c=0;
+            for (int i=from;i<to;i++)
+                c+= state[i]==CellStore.VALID ? 1 : 0;
+            return c;
+        }
+        /**
+         * @return the value of the aggregate, or the error among the values; MIN and MAX of nothing
+         * are 0, AVG of nothing is #DIV/0!
+         */
+        public int result(){
+            if (ErrorValue.is(lowest)) return lowest;
+            switch (kind){
+                case SUM:   return ErrorValue.saturate(sum);
+                case COUNT: return count;
+                case AVG:   return count==0 ? ErrorValue.DIV0.code : ErrorValue.saturate(sum/count);
+                case MIN:   return count==0 ? 0 : min;
+                case MAX:   return count==0 ? 0 : max;
+                default:    return 0;
+            }
+        }
+    }
+}
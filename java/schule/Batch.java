@@ -0,0 +1,200 @@
+package schule;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Headless evaluation of a sheet, for pipelines: loads a sheet (.csv or .wb), applies the cell
+ * updates read line by line from a file or standard input, and streams the values of the cells to
+ * standard output, e.g.
+ * <pre>
+ * java -cp target/dist/spreadsheet.jar schule.Batch sheet.csv updates.txt
+ * </pre>
+ * An update is a cell and its new content in the format of the CSV files, e.g. B7;=A1*2, B7;42,
+ * or B7; to empty the cell. Updates are applied in batches and the sheet is recalculated once per
+ * batch; a batch ends after batch.size updates, at an empty line, or as soon as no further input is
+ * available yet, so a slow producer still gets its results right away. Of several updates of a cell
+ * within a batch, only the last is applied.
+ * First all cells of the loaded sheet are written, then, after every batch, the cells whose values
+ * changed (or all cells with -Dbatch.output=all), each batch followed by an empty line. Lines are
+ * B7;42 with -Dbatch.format=csv (default), and {"cell":"B7","value":42} with json; an empty cell is
+ * written as B7; or with a null value, an error as B7;#DIV/0! or {"cell":"B7","error":"#DIV/0!"}.
+ * Malformed updates are reported on standard error and skipped.
+ */
+public class Batch {
+    static final int SIZE = Math.max(1,Integer.getInteger("batch.size",10000));
+    static final boolean JSON = System.getProperty("batch.format","csv").equals("json");
+    static final boolean ALL = System.getProperty("batch.output","changed").equals("all");
+
+    private final Spreadsheet sheet;
+    private final PrintStream out;
+    /** the updates of the current batch by cell, in the order of their first occurrence */
+    private final Map<Long,Optional<Expr>> updates = new LinkedHashMap<>();
+
+    Batch(Spreadsheet sheet, PrintStream out){
+        this.sheet=sheet;
+        this.out=out;
+    }
+    /**
+     * writes all cells of the sheet, then applies the updates read from in batch by batch
+     * @param in
+     * @throws IOException
+     */
+    void run(BufferedReader in) throws IOException {
+        sheet.recalculate();
+        writeAll();
+        int number = 0;
+        for (var line=in.readLine(); line!=null; line=in.readLine()) {
+            number++;
+            if (!line.isBlank()) read(line,number);
+            if (line.isBlank() || updates.size()>=SIZE || !in.ready()) apply();
+        }
+        apply();
+    }
+    /**
+     * adds the update on line to the batch, reporting it if it is malformed
+     */
+    private void read(String line, int number){
+        int separator = line.indexOf(';');
+        var cell = separator<0 ? "" : line.substring(0,separator).strip();
+        if (!cell.matches("[A-Za-z]+[0-9]+")) {
+            System.err.println("line "+number+": expected a cell, e.g. B7;=A1*2, but found "+line);
+            return;
+        }
+        var ref = new Expr.Ref(cell);
+        if (!ref.inBounds()) {
+            System.err.println("line "+number+": cell "+cell+" is out of bounds");
+            return;
+        }
+        var content = line.substring(separator+1).strip();
+        Optional<Expr> formula;
+        try {
+            if (content.isEmpty()) formula = Optional.empty();
+            else if (content.startsWith("=")) formula = Optional.of(Expr.parse(content.substring(1)));
+            else formula = Optional.of(new Expr.Const(ErrorValue.parse(content)));
+        }catch(Expr.Parser.Fail|NumberFormatException e){
+            System.err.println("line "+number+": "+cell+": "+e.getMessage());
+            return;
+        }
+        long key = DependencyGraph.key(ref.row,ref.col);
+        // the last update of a cell wins, but keeps the place of the first
+        updates.put(key,formula);
+    }
+    /**
+     * applies the updates of the batch, recalculates once, and writes the cells that changed
+     */
+    private void apply(){
+        if (updates.isEmpty()) return;
+        // invalidated cells keep their values until they are recalculated
+        var before = new HashMap<Long,Integer>();
+        for (var cell:updates.keySet())
+            before.put(cell,previous(cell));
+        sheet.setFormulas(updates);
+        // null stands for an empty cell, so computeIfAbsent would not do
+        for (var cell:sheet.dirty())
+            if (!before.containsKey(cell)) before.put(cell,previous(cell));
+        updates.clear();
+        sheet.recalculate();
+        if (ALL) {
+            writeAll();
+            return;
+        }
+        var cells = new ArrayList<>(before.keySet());
+        cells.sort(ROW_MAJOR);
+        for (var cell:cells) {
+            var value = current(cell);
+            if (!Objects.equals(value,before.get(cell))) write(cell,value);
+        }
+        endBatch();
+    }
+    private static final Comparator<Long> ROW_MAJOR =
+        Comparator.<Long>comparingInt(DependencyGraph::row).thenComparingInt(DependencyGraph::col);
+    /**
+     * @return the value of cell as last written: null if empty, otherwise its value, which an
+     * invalidated cell still holds
+     */
+    private Integer previous(long cell){
+        int row = DependencyGraph.row(cell), col = DependencyGraph.col(cell);
+        if (sheet.cells().getState(row,col)==CellStore.EMPTY) return null;
+        return sheet.cells().getValue(row,col);
+    }
+    /**
+     * @return the value of cell after the recalculation, like previous
+     */
+    private Integer current(long cell){
+        int row = DependencyGraph.row(cell), col = DependencyGraph.col(cell);
+        if (sheet.cells().getState(row,col)==CellStore.EMPTY) return null;
+        try {
+            return sheet.eval(row,col);
+        }catch(Exception e){
+            throw new IllegalStateException(e);
+        }
+    }
+    private void writeAll(){
+        var cells = new ArrayList<Long>();
+        for (var b:sheet.cells().blocks())
+            for (int r=0;r<CellStore.BLOCK_ROWS;r++)
+                for (int c=0;c<CellStore.BLOCK_COLS;c++)
+                    if (b.state[CellStore.index(r,c)]!=CellStore.EMPTY) cells.add(DependencyGraph.key(b.row+r,b.col+c));
+        cells.sort(ROW_MAJOR);
+        for (var cell:cells)
+            write(cell,current(cell));
+        endBatch();
+    }
+    /**
+     * writes one line for cell
+     * @param value null if the cell is empty, otherwise its value, which may be an error
+     */
+    private void write(long cell, Integer value){
+        var name = Expr.Ref.columnName(DependencyGraph.col(cell))+(DependencyGraph.row(cell)+1);
+        var error = value!=null && ErrorValue.is(value) ? ErrorValue.of(value) : null;
+        if (!JSON) out.println(name+";"+(value==null ? "" : error!=null ? error : value));
+        else if (error!=null) out.println("{\"cell\":\""+name+"\",\"error\":"+quote(error.toString())+"}");
+        else out.println("{\"cell\":\""+name+"\",\"value\":"+value+"}");
+    }
+    private void endBatch(){
+        out.println();
+        out.flush();
+    }
+    private static String quote(String s){
+        var quoted = new StringBuilder("\"");
+        for (var c:s.toCharArray()) {
+            if (c=='"' || c=='\\') quoted.append('\\').append(c);
+            else if (c<' ') quoted.append(String.format("\\u%04x",(int)c));
+            else quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+    /**
+     * @param args the sheet to load, and the file of updates; standard input if there is none or it is -
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length<1 || args.length>2) {
+            System.err.println("usage: schule.Batch sheet.csv|sheet.wb [updates|-]");
+            System.exit(2);
+        }
+        Metrics.register();
+        var sheet = args[0].endsWith(".wb") ? Workbook.read(Path.of(args[0]))
+            : Spreadsheet.parseCSV(args[0],Integer.getInteger("spreadsheet.parallelism",1),null);
+        var out = new PrintStream(new BufferedOutputStream(System.out,1<<16),false);
+        try (var in = args.length<2 || args[1].equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in))
+                : Files.newBufferedReader(Path.of(args[1]))) {
+            new Batch(sheet,out).run(in);
+        }
+        out.flush();
+        if (Metrics.enabled) System.err.println(Metrics.get().report());
+    }
+}
@@ -0,0 +1,78 @@
+package schule;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable map of the blocks of a CellStore by their key, as frozen into a Snapshot. The next map
+ * is derived from the previous one by copying just the paths to the blocks changed in between, so
+ * that freezing the store costs in proportion to these blocks, not to all of them: a hash trie with
+ * 32 slots per node, each holding nothing, a block or a child node, indexed by five bits of the key
+ * at a time, from the top. Block keys are scrambled by an odd multiplier, so their upper bits are
+ * well mixed, and distinct keys differ in some bit, which separates them at the latest at the
+ * bottom level.
+ */
+final class BlockMap {
+    static final BlockMap EMPTY = new BlockMap(new Object[32]);
+    /** shift of the five bits of a key indexing the root, each level below takes the next five */
+    private static final int TOP=59;
+
+    private final Object[] root;
+
+    private BlockMap(Object[] root){
+        this.root=root;
+    }
+    /**
+     * @return the block under key, null if there is none
+     */
+    CellStore.Block get(long key){
+        var node = root;
+        for (int shift=TOP;;shift-=5) {
+            var slot = node[index(key,shift)];
+            if (slot instanceof Object[] child) node = child;
+            else return slot!=null && key((CellStore.Block)slot)==key ? (CellStore.Block)slot : null;
+        }
+    }
+    /**
+     * @param changes blocks by key, null for a block removed
+     * @return this map with changes applied, sharing all nodes off their paths with this map
+     */
+    BlockMap with(Map<Long,CellStore.Block> changes){
+        if (changes.isEmpty()) return this;
+        // nodes copied for these changes are not shared yet, so further changes may modify them
+        var copies = Collections.newSetFromMap(new IdentityHashMap<Object[],Boolean>());
+        var result = root;
+        for (var change:changes.entrySet())
+            result = put(result,TOP,change.getKey(),change.getValue(),copies);
+        return new BlockMap(result);
+    }
+    /**
+     * @return node, or a copy of it, with block under key; removes the block under key if block is null
+     */
+    private static Object[] put(Object[] node, int shift, long key, CellStore.Block block, Set<Object[]> copies){
+        var copy = copies.contains(node) ? node : node.clone();
+        copies.add(copy);
+        int i = index(key,shift);
+        var slot = copy[i];
+        if (slot instanceof Object[] child) copy[i] = put(child,shift-5,key,block,copies);
+        else if (slot==null || key((CellStore.Block)slot)==key) copy[i] = block;
+        else if (block!=null) {
+            // another block occupies the slot, so both move down into a new node
+            var child = new Object[32];
+            copies.add(child);
+            var other = (CellStore.Block)slot;
+            child[index(key(other),shift-5)] = other;
+            copy[i] = put(child,shift-5,key,block,copies);
+        }
+        return copy;
+    }
+    private static int index(long key, int shift){
+        // the bottom level takes the four lowest bits
+        return (int)(shift>=0 ? key>>>shift : key<<-shift) & 31;
+    }
+    private static long key(CellStore.Block b){
+        return CellStore.blockKey(b.row,b.col);
+    }
+}
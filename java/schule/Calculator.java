@@ -28,7 +28,7 @@ public class Calculator {
         try {
             var expr = Expr.parse(expression);
             int result = expr.eval(ctx);
-            System.out.println("Result: " + result);
+            System.out.println("Result: " + (ErrorValue.is(result) ? ErrorValue.of(result) : result));
             keyboard.close();
         } catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,321 @@
+package schule;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Supplier;
+
+/**
+ * Sparse storage for the cells of a sheet. The sheet is cut into blocks of BLOCK_ROWS x BLOCK_COLS
+ * cells, which are only allocated once one of their cells is populated; the blocks are found via
+ * their packed block row/col. Inside a block, cells are laid out column by column, so that a
+ * vertical run of cells occupies a contiguous slice of the primitive values array.
+ * Values of distinct cells may be cached concurrently, as long as no cells are populated or
+ * cleared at the same time.
+ * The blocks as they are at a point in time can be frozen into a Snapshot, which other threads read
+ * while the cells are modified further: a block belonging to a snapshot is never modified again, but
+ * copied on the first write after the snapshot, and the copy takes its place in the store. The store
+ * keeps track of the blocks allocated, copied or removed since the last snapshot, which the next one
+ * replaces in the BlockMap of the last, so that neither costs in proportion to the whole sheet.
+ */
+public class CellStore {
+    public static final int ROW_SHIFT=7;
+    public static final int COL_SHIFT=2;
+    public static final int BLOCK_ROWS=1<<ROW_SHIFT;
+    public static final int BLOCK_COLS=1<<COL_SHIFT;
+    public static final int BLOCK_SIZE=BLOCK_ROWS*BLOCK_COLS;
+    /** cell holds neither a formula nor a plain value */
+    public static final byte EMPTY=0;
+    /** cell holds a formula whose value is not cached */
+    public static final byte DIRTY=1;
+    /** cell holds a formula whose value is cached in values, or a plain value without formula */
+    public static final byte VALID=2;
+    /** cell is on the stack of cells currently being evaluated, i.o. to detect cycles */
+    public static final byte EVALUATING=3;
+
+    public static class Block {
+        /** top left cell of the block */
+        public final int row,col;
+        /** version of the store in which the block was allocated or copied */
+        private final long version;
+        public final int[] values = new int[BLOCK_SIZE];
+        public final byte[] state = new byte[BLOCK_SIZE];
+        /** allocated with the first formula, blocks of plain values do without */
+        private Expr[] formulae;
+        /** supplies the formulae of a loaded block once they are needed */
+        private volatile Supplier<Expr[]> decoder;
+        private int populated=0;
+        /** number of DIRTY or EVALUATING cells per column of the block */
+        private final AtomicIntegerArray pending = new AtomicIntegerArray(BLOCK_COLS);
+        /**
+         * @return whether some cell of column col within this block waits for evaluation
+         */
+        public boolean hasPending(int col){
+            return pending.get(col&(BLOCK_COLS-1))>0;
+        }
+        private Block(int row, int col, long version){
+            this.row=row&~(BLOCK_ROWS-1);
+            this.col=col&~(BLOCK_COLS-1);
+            this.version=version;
+        }
+        /**
+         * copies b, which belongs to a snapshot, for version
+         */
+        private Block(Block b, long version){
+            this(b.row,b.col,version);
+            System.arraycopy(b.values,0,values,0,BLOCK_SIZE);
+            System.arraycopy(b.state,0,state,0,BLOCK_SIZE);
+            // decode() replaces decoder by formulae under the lock
+            synchronized (b) {
+                formulae = b.formulae==null ? null : b.formulae.clone();
+                decoder = b.decoder;
+            }
+            populated = b.populated;
+            for (int c=0;c<BLOCK_COLS;c++)
+                pending.set(c,b.pending.get(c));
+        }
+        private Expr[] formulae(){
+            if (decoder!=null) decode();
+            return formulae;
+        }
+        private synchronized void decode(){
+            if (decoder==null) return;
+            formulae=decoder.get();
+            decoder=null;
+        }
+        private void setState(int i, byte s){
+            int delta = (s==DIRTY||s==EVALUATING ? 1 : 0) - (state[i]==DIRTY||state[i]==EVALUATING ? 1 : 0);
+            if (delta!=0) pending.addAndGet(i>>>ROW_SHIFT,delta);
+            state[i]=s;
+        }
+    }
+    private Map<Long,Block> blocks = new ConcurrentHashMap<>();
+    /** version of the blocks being modified; blocks of earlier versions belong to snapshots */
+    private long version=1;
+    /** the blocks of the last snapshot, and the keys of the blocks changed since */
+    private BlockMap frozen = BlockMap.EMPTY;
+    private Set<Long> unfrozen = ConcurrentHashMap.newKeySet();
+    /** aggregation indexes of the columns aggregated so far */
+    private Map<Integer,ColumnIndex> indexes = new ConcurrentHashMap<>();
+    private int rows=0,cols=0;
+
+    /**
+     * packs the block row/col of row/col, scrambled by an odd (hence invertible) multiplier, as the
+     * hash of a Long would otherwise only depend on a few bits of the block coordinates
+     */
+    static long blockKey(int row, int col){
+        return (((long)(row>>>ROW_SHIFT)<<(Expr.Ref.COL_BITS-COL_SHIFT)) | (col>>>COL_SHIFT)) * 0x9E3779B97F4A7C15L;
+    }
+    /**
+     * @return position of cell row/col within its block
+     */
+    public static int index(int row, int col){
+        return ((col&(BLOCK_COLS-1))<<ROW_SHIFT) | (row&(BLOCK_ROWS-1));
+    }
+    /**
+     * @return the block containing row/col, or null if none of its cells is populated
+     */
+    public Block block(int row, int col){
+        return blocks.get(blockKey(row,col));
+    }
+    /**
+     * @return the formula of cell row/col, or null if it is empty or holds a plain value
+     */
+    public Expr getFormula(int row, int col){
+        var b = block(row,col);
+        if (b==null) return null;
+        var formulae = b.formulae();
+        return formulae==null ? null : formulae[index(row,col)];
+    }
+    /**
+     * stores formula (or clears the cell if formula is null) and marks the cell as DIRTY
+     * @param row
+     * @param col
+     * @param formula
+     */
+    public void setFormula(int row, int col, Expr formula){
+        put(row,col,formula,0,formula==null ? EMPTY : DIRTY);
+    }
+    /**
+     * stores a plain value without formula, which is VALID right away and never needs evaluation
+     * @param row
+     * @param col
+     * @param value
+     */
+    public void setConstant(int row, int col, int value){
+        put(row,col,null,value,VALID);
+    }
+    private void put(int row, int col, Expr formula, int value, byte state){
+        var key = blockKey(row,col);
+        var b = writable(key);
+        if (b==null) {
+            if (state==EMPTY) return;
+            b = new Block(row,col,version);
+            blocks.put(key,b);
+            unfrozen.add(key);
+        }
+        var i = index(row,col);
+        if (b.state[i]==EMPTY && state!=EMPTY) b.populated++;
+        if (b.state[i]!=EMPTY && state==EMPTY) b.populated--;
+        var formulae = b.formulae();
+        if (formulae==null && formula!=null) formulae = b.formulae = new Expr[BLOCK_SIZE];
+        if (formulae!=null) formulae[i]=formula;
+        b.values[i]=value;
+        b.setState(i,state);
+        changed(row,col);
+        if (b.populated==0) {
+            blocks.remove(key);
+            unfrozen.add(key);
+        }
+        else {
+            rows=Math.max(rows,row+1);
+            cols=Math.max(cols,col+1);
+        }
+    }
+    public byte getState(int row, int col){
+        var b = block(row,col);
+        return b==null ? EMPTY : b.state[index(row,col)];
+    }
+    public int getValue(int row, int col){
+        var b = block(row,col);
+        return b==null ? 0 : b.values[index(row,col)];
+    }
+    /**
+     * caches value for the (populated) cell row/col and marks it VALID
+     */
+    public void setValue(int row, int col, int value){
+        var b = writable(blockKey(row,col));
+        var i = index(row,col);
+        b.values[i]=value;
+        b.setState(i,VALID);
+        changed(row,col);
+    }
+    private void changed(int row, int col){
+        var index = indexes.get(col);
+        if (index!=null) index.markDirty(row>>>ROW_SHIFT);
+    }
+    /**
+     * feeds the values of the cells from..to of column col into acc; runs of whole blocks are
+     * taken from the column's aggregation index, the ragged ends are scanned directly
+     * @param col
+     * @param from
+     * @param to
+     * @param acc
+     */
+    public void aggregate(int col, int from, int to, Aggregate.Accumulator acc){
+        int firstBlock = (from+BLOCK_ROWS-1)>>>ROW_SHIFT, lastBlock = ((to+1)>>>ROW_SHIFT)-1;
+        if (lastBlock-firstBlock<1) {
+            aggregateSlices(col,from,to,acc);
+            return;
+        }
+        aggregateSlices(col,from,(firstBlock<<ROW_SHIFT)-1,acc);
+        indexes.computeIfAbsent(col,c -> new ColumnIndex(this,c)).aggregate(firstBlock,lastBlock,acc);
+        aggregateSlices(col,(lastBlock+1)<<ROW_SHIFT,to,acc);
+    }
+    private void aggregateSlices(int col, int from, int to, Aggregate.Accumulator acc){
+        for (int row=from&~(BLOCK_ROWS-1); row<=to; row+=BLOCK_ROWS) {
+            var b = block(row,col);
+            if (b==null) continue;
+            int first = Math.max(row,from), last = Math.min(row|(BLOCK_ROWS-1),to);
+            acc.addAll(b.values,b.state,index(first,col),index(last,col)+1);
+        }
+    }
+    /**
+     * sets the state of the (populated) cell row/col, e.g. to mark it as EVALUATING
+     */
+    public void setState(int row, int col, byte state){
+        writable(blockKey(row,col)).setState(index(row,col),state);
+    }
+    /**
+     * drops the cached value of a cell holding a formula; plain values stay as they are
+     */
+    public void invalidate(int row, int col){
+        var b = block(row,col);
+        if (b==null) return;
+        var i = index(row,col);
+        if (b.state[i]!=VALID) return;
+        var formulae = b.formulae();
+        if (formulae!=null && formulae[i]!=null) writable(blockKey(row,col)).setState(i,DIRTY);
+    }
+    /**
+     * @return the block under key, copied first if it belongs to a snapshot; null if there is none
+     */
+    private Block writable(long key){
+        var b = blocks.get(key);
+        if (b==null || b.version==version) return b;
+        unfrozen.add(key);
+        // cells of one block may be evaluated concurrently, so only one of them copies it
+        return blocks.computeIfPresent(key,(k,old) -> old.version==version ? old : new Block(old,version));
+    }
+    /**
+     * freezes the blocks as they are now, so that they are copied before they are modified again;
+     * costs in proportion to the blocks changed since the last snapshot
+     * @param number of the snapshot
+     * @return the snapshot of the blocks
+     */
+    Snapshot snapshot(long number){
+        var changes = new HashMap<Long,Block>();
+        for (var key:unfrozen)
+            changes.put(key,blocks.get(key));
+        // replaced rather than cleared, which would keep the capacity of the first snapshot for good
+        unfrozen = ConcurrentHashMap.newKeySet();
+        frozen = frozen.with(changes);
+        version++;
+        return new Snapshot(number,frozen,rows,cols);
+    }
+    /**
+     * @return the populated blocks, ordered by their top left cell
+     */
+    public List<Block> blocks(){
+        var result = new ArrayList<>(blocks.values());
+        result.sort(Comparator.<Block>comparingInt(b -> b.row).thenComparingInt(b -> b.col));
+        return result;
+    }
+    /**
+     * allocates an empty block containing row/col for a loader, which fills in values and state
+     * directly and then hands the block to loaded
+     */
+    Block allocate(int row, int col){
+        var b = new Block(row,col,version);
+        blocks.put(blockKey(row,col),b);
+        unfrozen.add(blockKey(row,col));
+        return b;
+    }
+    /**
+     * takes over a block filled in by a loader
+     * @param b
+     * @param formulae supplies the formulae of the block once one of them is needed, null if there are none
+     */
+    void loaded(Block b, Supplier<Expr[]> formulae){
+        b.decoder=formulae;
+        for (int i=0;i<BLOCK_SIZE;i++) {
+            var s = b.state[i];
+            if (s==EMPTY) continue;
+            b.state[i]=EMPTY;
+            b.setState(i,s==EVALUATING ? DIRTY : s);
+            b.populated++;
+            rows=Math.max(rows,b.row+(i&(BLOCK_ROWS-1))+1);
+            cols=Math.max(cols,b.col+(i>>>ROW_SHIFT)+1);
+        }
+        for (int c=0;c<BLOCK_COLS;c++)
+            changed(b.row,b.col+c);
+        if (b.populated==0) blocks.remove(blockKey(b.row,b.col));
+    }
+    /**
+     * @return number of rows up to the last one that was ever populated
+     */
+    public int rows(){
+        return rows;
+    }
+    /**
+     * @return number of columns up to the last one that was ever populated
+     */
+    public int cols(){
+        return cols;
+    }
+}
@@ -0,0 +1,114 @@
+package schule;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Aggregation index for a single column of a CellStore: a segment tree over the blocks of the
+ * column, whose leaves summarize sum, count, min and max of the column's slice in one block.
+ * Changed cells only mark their block dirty; dirty leaves are recomputed lazily when the index is
+ * queried next, so any run of whole blocks is aggregated in O(log n).
+ * All methods are synchronized, since cells may be evaluated and aggregated concurrently.
+ */
+class ColumnIndex {
+    private final CellStore cells;
+    private final int col;
+    /** number of leaves, a power of 2 */
+    private int capacity=1;
+    private long[] sum = new long[2];
+    private int[] count = new int[2];
+    private int[] min = {Integer.MAX_VALUE,Integer.MAX_VALUE};
+    private int[] max = {Integer.MIN_VALUE,Integer.MIN_VALUE};
+    private BitSet dirty = new BitSet();
+
+    ColumnIndex(CellStore cells, int col){
+        this.cells=cells;
+        this.col=col;
+        // summarize whatever is already in the column on first use
+        int blocks = (cells.rows()+CellStore.BLOCK_ROWS-1)>>>CellStore.ROW_SHIFT;
+        grow(blocks);
+        dirty.set(0,blocks);
+    }
+    /**
+     * records that some cell of the column within block row blockRow has changed
+     */
+    synchronized void markDirty(int blockRow){
+        grow(blockRow+1);
+        dirty.set(blockRow);
+    }
+    /**
+     * feeds the summaries of the block rows from..to (inclusive) into acc
+     */
+    synchronized void aggregate(int from, int to, Aggregate.Accumulator acc){
+        grow(to+1);
+        refresh();
+        int l = from+capacity, r = to+capacity+1;
+        while (l<r) {
+            if ((l&1)==1) add(l++,acc);
+            if ((r&1)==1) add(--r,acc);
+            l>>>=1;
+            r>>>=1;
+        }
+    }
+    private void add(int node, Aggregate.Accumulator acc){
+        acc.addSummary(sum[node],count[node],min[node],max[node]);
+    }
+    /**
+     * recomputes the leaves of all dirty blocks and the inner nodes above them
+     */
+    private void refresh(){
+        for (int b=dirty.nextSetBit(0); b>=0; b=dirty.nextSetBit(b+1)) {
+            int node = b+capacity;
+            sum[node]=0;
+            count[node]=0;
+            min[node]=Integer.MAX_VALUE;
+            max[node]=Integer.MIN_VALUE;
+            var block = cells.block(b<<CellStore.ROW_SHIFT,col);
+            if (block!=null) {
+                int first = CellStore.index(0,col);
+                for (int i=first; i<first+CellStore.BLOCK_ROWS; i++) {
+                    sum[node]+=block.values[i];
+                    if (block.state[i]==CellStore.VALID) {
+                        count[node]++;
+                        min[node]=Math.min(min[node],block.values[i]);
+                        max[node]=Math.max(max[node],block.values[i]);
+                    }
+                }
+            }
+            for (node>>>=1; node>0; node>>>=1)
+                combine(node);
+        }
+        dirty.clear();
+    }
+    private void combine(int node){
+        int l=2*node, r=l+1;
+        sum[node]=sum[l]+sum[r];
+        count[node]=count[l]+count[r];
+        min[node]=Math.min(min[l],min[r]);
+        max[node]=Math.max(max[l],max[r]);
+    }
+    /**
+     * doubles the number of leaves until there are at least blocks of them
+     */
+    private void grow(int blocks){
+        if (blocks<=capacity) return;
+        int old = capacity;
+        while (capacity<blocks) capacity*=2;
+        var s = new long[2*capacity];
+        var c = new int[2*capacity];
+        var mi = new int[2*capacity];
+        var ma = new int[2*capacity];
+        Arrays.fill(mi,Integer.MAX_VALUE);
+        Arrays.fill(ma,Integer.MIN_VALUE);
+        System.arraycopy(sum,old,s,capacity,old);
+        System.arraycopy(count,old,c,capacity,old);
+        System.arraycopy(min,old,mi,capacity,old);
+        System.arraycopy(max,old,ma,capacity,old);
+        sum=s;
+        count=c;
+        min=mi;
+        max=ma;
+        for (int node=capacity-1; node>0; node--)
+            combine(node);
+    }
+}
@@ -0,0 +1,218 @@
+package schule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.stream.Collectors;
+
+import com.googlecode.lanterna.TerminalPosition;
+import com.googlecode.lanterna.TextColor;
+import com.googlecode.lanterna.graphics.TextGraphics;
+import com.googlecode.lanterna.screen.Screen;
+
+/**
+ * Incremental rendering of a sheet on a Lanterna screen. The viewport, the part of the sheet on
+ * screen, fills the terminal and scrolls along with the cursor. The frame of the grid is drawn
+ * only when the viewport moves or the terminal is resized; otherwise just the cells whose text
+ * changed and the cells the cursor left or entered are drawn again, so that a refresh of type
+ * DELTA sends only these few characters to the terminal.
+ */
+class ConsoleView {
+    /** distance between the borders of neighbouring columns */
+    private static final int WIDTH=3+Spreadsheet.DIGITS;
+    /** box drawing characters where the lines of the grid meet, by top/inner/bottom and left/inner/right */
+    private static final char[][] JUNCTIONS = {
+        {(char)0x250C,(char)0x252C,(char)0x2510},  // ┌ ┬ ┐
+        {(char)0x251C,(char)0x253C,(char)0x2524},  // ├ ┼ ┤
+        {(char)0x2514,(char)0x2534,(char)0x2518}}; // └ ┴ ┘
+
+    private final Spreadsheet sheet;
+    private final Screen screen;
+    private final TextGraphics textGraphics;
+    /** first row and column of the viewport, and the number of rows and columns in it */
+    private int top=0,left=0,rows=0,cols=0;
+    /** width of the row labels, where the grid begins */
+    private int x0=WIDTH;
+    /** text on screen of each cell of the viewport, null if the cell still has to be drawn */
+    private String[][] shown;
+    /** cell framed as the cursor, -1 if none */
+    private int cursorrow=-1,cursorcol=-1;
+    /** whether the frame on screen matches the viewport */
+    private boolean valid=false;
+    /** whether the sheet was recalculating in the background when the drawing began */
+    private boolean busy;
+
+    ConsoleView(Spreadsheet sheet, Screen screen, TextGraphics textGraphics){
+        this.sheet=sheet;
+        this.screen=screen;
+        this.textGraphics=textGraphics;
+    }
+    boolean shows(Screen screen){
+        return this.screen==screen;
+    }
+    /**
+     * @return number of rows in the viewport
+     */
+    int rows(){
+        return rows;
+    }
+    /**
+     * forces the next draw to start from a blank screen, e.g. after a dialog covered the sheet
+     */
+    void invalidate(){
+        valid=false;
+    }
+    /**
+     * brings the screen up to date, scrolling the viewport so that it contains the cursor
+     * @return the formula of the cell at the cursor
+     */
+    String draw(int row, int col){
+        if (screen.doResizeIfNecessary()!=null) valid=false;
+        // the cells that come into view are evaluated first, in the background
+        if (scrollTo(row,col)) sheet.show(top,left,rows,cols);
+        // only the caller edits the sheet, so it stays idle while drawing if it is idle now
+        busy = sheet.recalculating();
+        if (!valid) frame();
+        for (int r=0;r<rows;r++)
+            for (int c=0;c<cols;c++) {
+                var text = text(top+r,left+c);
+                if (!text.equals(shown[r][c])) {
+                    shown[r][c]=text;
+                    textGraphics.putString(x0+c*WIDTH+1,2*r+3," "+text+" ");
+                }
+            }
+        if (row!=cursorrow || col!=cursorcol) {
+            if (cursorrow>=0) border(cursorrow,cursorcol,TextColor.ANSI.DEFAULT);
+            border(row,col,TextColor.ANSI.RED);
+            cursorrow=row;
+            cursorcol=col;
+        }
+        return prompt(row,col);
+    }
+    /**
+     * moves the viewport just as far as needed to contain row and col, fitting it to the terminal
+     * @return whether the viewport moved or changed its size
+     */
+    private boolean scrollTo(int row, int col){
+        var size = screen.getTerminalSize();
+        int top0=top,left0=left,rows0=rows,cols0=cols,x00=x0;
+        // a header line, two lines per row, and the prompt below the grid
+        rows = Math.max(1,(size.getRows()-5)/2);
+        if (row<top) top=row;
+        else if (row>=top+rows) top=row-rows+1;
+        x0 = Math.max(WIDTH,String.valueOf(top+rows).length()+2);
+        cols = Math.max(1,(size.getColumns()-x0-1)/WIDTH);
+        if (col<left) left=col;
+        else if (col>=left+cols) left=col-cols+1;
+        boolean moved = top!=top0 || left!=left0 || rows!=rows0 || cols!=cols0;
+        if (moved || x0!=x00) valid=false;
+        return moved;
+    }
+    /**
+     * clears the screen and draws the lines of the grid and the labels of rows and columns
+     */
+    private void frame(){
+        screen.clear();
+        int x1 = x0+cols*WIDTH;
+        for (int r=0;r<=rows+1;r++) {
+            textGraphics.drawLine(x0,2*r,x1,2*r,(char)0x2500); // -
+            for (int c=0;c<=cols;c++) {
+                int y = r==0 ? 0 : r==rows+1 ? 2 : 1, x = c==0 ? 0 : c==cols ? 2 : 1;
+                textGraphics.setCharacter(x0+c*WIDTH,2*r,JUNCTIONS[y][x]);
+                if (r<=rows) textGraphics.setCharacter(x0+c*WIDTH,2*r+1,(char)0x2502); // |
+            }
+            if (r>0 && r<=rows) {
+                var label = String.valueOf(top+r);
+                textGraphics.putString(x0-1-label.length(),2*r+1,label);
+            }
+        }
+        for (int c=0;c<cols;c++)
+            textGraphics.putString(x0+c*WIDTH+1,1," "+Expr.Ref.columnName(left+c));
+        shown = new String[rows][cols];
+        cursorrow=cursorcol=-1;
+        valid=true;
+    }
+    /**
+     * draws the border of the cell at row and col in color, leaving the junctions alone
+     */
+    private void border(int row, int col, TextColor color){
+        int r = row-top, c = col-left;
+        if (r<0 || r>=rows || c<0 || c>=cols) return;
+        int x = x0+c*WIDTH, y = 2*r+2;
+        textGraphics.setForegroundColor(color);
+        textGraphics.drawLine(x+1,y,x+WIDTH-1,y,(char)0x2500);     // -
+        textGraphics.drawLine(x+1,y+2,x+WIDTH-1,y+2,(char)0x2500); // -
+        textGraphics.setCharacter(x,y+1,(char)0x2502);             // |
+        textGraphics.setCharacter(x+WIDTH,y+1,(char)0x2502);       // |
+        textGraphics.setForegroundColor(TextColor.ANSI.DEFAULT);
+    }
+    /**
+     * @return the value of the cell as shown in its DIGITS wide box: blank if the cell is empty, dots
+     * while it waits for the background recalculation, hash signs if the value is too wide, and the
+     * (beginning of the) label of the error, e.g. #DIV/0!, if the evaluation fails
+     */
+    private String text(int row, int col){
+        var cells = sheet.cells();
+        int state = cells.getState(row,col);
+        if (state==CellStore.EMPTY) return " ".repeat(Spreadsheet.DIGITS);
+        int value;
+        if (busy) {
+            // evaluating here would race with the background thread, cached values are all we have
+            if (state!=CellStore.VALID) return ".".repeat(Spreadsheet.DIGITS);
+            value = cells.getValue(row,col);
+        }
+        else value = value(row,col);
+        if (ErrorValue.is(value)) {
+            var label = ErrorValue.of(value).toString();
+            return label.length()>Spreadsheet.DIGITS ? label.substring(0,Spreadsheet.DIGITS)
+                : String.format("%"+Spreadsheet.DIGITS+"s",label);
+        }
+        var text = String.format("%"+Spreadsheet.DIGITS+"d",value);
+        return text.length()>Spreadsheet.DIGITS ? "#".repeat(Spreadsheet.DIGITS) : text;
+    }
+    /**
+     * writes the little prompt at the bottom line, with the formula of the cell at the cursor and
+     * the error of its evaluation, if any
+     * @return the formula
+     */
+    private String prompt(int row, int col){
+        var bo = new ByteArrayOutputStream();
+        sheet.getFormula(row,col).ifPresent(x -> x.replicateTo(new PrintStream(bo)));
+        var formula = bo.toString();
+        var cell = "Current Cell "+Expr.Ref.columnName(col)+(row+1)+": ="+formula;
+        var line = cell;
+        if (busy) line += "   (recalculating)";
+        else if (sheet.cells().getState(row,col)!=CellStore.EMPTY && ErrorValue.is(value(row,col)))
+            line += "   ### "+explain(row,col);
+        int y = 2*(rows+2), width = screen.getTerminalSize().getColumns();
+        textGraphics.putString(1,y,line.length()<width-1 ? line+" ".repeat(width-1-line.length()) : line);
+        // cursor to indicate readyness for new input
+        screen.setCursorPosition(new TerminalPosition(1+cell.length(),y));
+        return formula;
+    }
+    private int value(int row, int col){
+        try {
+            return sheet.eval(row,col);
+        }catch(Exception e){
+            throw new IllegalStateException(e);
+        }
+    }
+    /**
+     * @return the error of the cell with its description, the message of the parser if its formula
+     * could not be parsed, and the cells of the circular reference if it is part of one
+     */
+    private String explain(int row, int col){
+        var error = ErrorValue.of(value(row,col));
+        if (sheet.cells().getFormula(row,col) instanceof Expr.Deferred d)
+            try {
+                d.parse();
+            }catch(Expr.Parser.Fail f){
+                return error+" "+f.getMessage();
+            }
+        var cycle = sheet.cyclePath(row,col);
+        if (error==ErrorValue.CYCLE && !cycle.isEmpty())
+            return error+" "+error.description()+": "+cycle.stream()
+                .map(k -> Expr.Ref.columnName(DependencyGraph.col(k))+(DependencyGraph.row(k)+1))
+                .collect(Collectors.joining(" -> "));
+        return error+" "+error.description();
+    }
+}
@@ -0,0 +1,180 @@
+package schule;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * Streaming export of a sheet as lines of ;-separated cells, the format read by CsvImport. Empty
+ * cells are kept as empty fields, so every cell stays in its column, only trailing empty fields of
+ * a line are left out. The rows are written band by band, visiting just the populated blocks of the
+ * band, and every cell goes straight into one large byte buffer: formulae in their replicateTo
+ * form, plain values as digits, and errors as their labels, e.g. #DIV/0!, which CsvImport reads
+ * back as the error.
+ */
+public class CsvExport {
+    private static final int BUFFER_SIZE=1<<20;
+
+    private final Spreadsheet sheet;
+    private final Output out;
+    private final boolean values;
+
+    private CsvExport(Spreadsheet sheet, Output out, boolean values){
+        this.sheet=sheet;
+        this.out=out;
+        this.values=values;
+    }
+    /**
+     * writes sheet to file
+     * @param sheet
+     * @param file
+     * @param values whether to write the values of formula cells instead of their formulae
+     * @throws IOException
+     */
+    public static void write(Spreadsheet sheet, Path file, boolean values) throws IOException {
+        try (var out = new Output(Files.newOutputStream(file))) {
+            new CsvExport(sheet,out,values).rows();
+            if (out.checkError()) throw new IOException("could not write "+file);
+        }
+    }
+    private void rows(){
+        var cells = sheet.cells();
+        var blocks = cells.blocks();
+        int row = 0;
+        // blocks are sorted by row, so each band of BLOCK_ROWS rows is a run of blocks
+        for (int first=0; first<blocks.size(); ) {
+            var band = new ArrayList<CellStore.Block>();
+            int top = blocks.get(first).row;
+            while (first<blocks.size() && blocks.get(first).row==top)
+                band.add(blocks.get(first++));
+            for (; row<top; row++)
+                out.write('\n');
+            for (; row<Math.min(top+CellStore.BLOCK_ROWS,cells.rows()); row++) {
+                int col = 0;
+                for (var b:band)
+                    for (int c=0;c<CellStore.BLOCK_COLS;c++) {
+                        int i = CellStore.index(row,c);
+                        if (b.state[i]==CellStore.EMPTY) continue;
+                        for (; col<b.col+c; col++)
+                            out.write(';');
+                        cell(row,b.col+c,b);
+                    }
+                out.write('\n');
+            }
+        }
+        for (; row<cells.rows(); row++)
+            out.write('\n');
+    }
+    private void cell(int row, int col, CellStore.Block b){
+        var formula = sheet.cells().getFormula(row,col);
+        if (formula==null) print(b.values[CellStore.index(row,col)]);
+        else if (values) print(value(row,col));
+        else {
+            out.write('=');
+            formula.at(row,col).replicateTo(out);
+        }
+    }
+    private void print(int value){
+        if (ErrorValue.is(value)) out.print(ErrorValue.of(value).toString());
+        else out.print(value);
+    }
+    private int value(int row, int col){
+        try {
+            return sheet.eval(row,col);
+        }catch(Exception e){
+            throw new IllegalStateException(e);
+        }
+    }
+    /**
+     * PrintStream for replicateTo, which copies ASCII text and numbers right into its own buffer,
+     * instead of passing every single print through a charset encoder and flushing it
+     */
+    private static class Output extends PrintStream {
+        private final OutputStream sink;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final byte[] digits = new byte[11];
+        private int size=0;
+
+        Output(OutputStream sink){
+            super(sink,false,StandardCharsets.UTF_8);
+            this.sink=sink;
+        }
+        @Override
+        public void write(int b){
+            if (size==buffer.length) drain();
+            buffer[size++]=(byte)b;
+        }
+        @Override
+        public void write(byte[] b, int off, int len){
+            if (size+len>buffer.length) drain();
+            if (len>buffer.length) {
+                super.write(b,off,len);
+                return;
+            }
+            System.arraycopy(b,off,buffer,size,len);
+            size+=len;
+        }
+        @Override
+        public void print(char c){
+            if (c<0x80) write(c);
+            else print(String.valueOf(c));
+        }
+        @Override
+        public void print(String s){
+            int n = s.length();
+            if (size+n>buffer.length) drain();
+            for (int i=0;i<n;i++) {
+                char c = s.charAt(i);
+                if (c>=0x80 || size==buffer.length) {
+                    // leave the rest to the encoder of PrintStream
+                    drain();
+                    super.print(s.substring(i));
+                    return;
+                }
+                buffer[size++]=(byte)c;
+            }
+        }
+        /**
+         * writes value in decimal, without going through a String
+         */
+        @Override
+        public void print(int value){
+            long v = value;
+            if (v<0) {
+                write('-');
+                v = -v;
+            }
+            int i = digits.length;
+            do {
+                digits[--i] = (byte)('0'+v%10);
+                v /= 10;
+            } while (v>0);
+            write(digits,i,digits.length-i);
+        }
+        /**
+         * hands the buffer over to the sink, ahead of anything PrintStream itself writes to it
+         */
+        private void drain(){
+            try {
+                sink.write(buffer,0,size);
+            }catch(IOException e){
+                setError();
+            }
+            size=0;
+        }
+        @Override
+        public void flush(){
+            drain();
+            super.flush();
+        }
+        @Override
+        public void close(){
+            drain();
+            super.close();
+        }
+    }
+}
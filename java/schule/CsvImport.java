@@ -0,0 +1,301 @@
+package schule;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Streaming import of sheets stored as lines of ;-separated cells, e.g. 5;=C1;;=SUM(A1:A3).
+ * The file is read through a fixed size buffer and split into cells byte by byte, so memory use does
+ * not grow with the file, only with the populated cells. Plain integers are stored as primitive
+ * values right away, formulae are kept as text and only parsed once they are evaluated.
+ * Given a fork/join pool, the file is instead read in windows of several MiB, which are cut into
+ * line-aligned chunks; the chunks are scanned and their formulae parsed concurrently, and then merged
+ * into the sheet in file order, so the result does not depend on the scheduling.
+ */
+public class CsvImport {
+    private static final int BUFFER_SIZE=1<<20;
+    /** nominal size of the chunks loaded in parallel */
+    private static final int CHUNK_SIZE=1<<20;
+
+    /**
+     * receives the progress of an import, once per buffer read
+     */
+    @FunctionalInterface
+    public interface Progress {
+        void update(long bytesRead, long totalBytes, int rows);
+    }
+
+    private final Spreadsheet sheet;
+    /** row of the next line */
+    int row;
+
+    private CsvImport(Spreadsheet sheet, int row){
+        this.sheet=sheet;
+        this.row=row;
+    }
+    /**
+     * loads file into the empty sheet
+     * @param file
+     * @param sheet
+     * @param progress may be null
+     * @throws IOException if the file cannot be read or exceeds Expr.Ref.MAX_ROWS x MAX_COLS
+     * @throws NumberFormatException if a cell holds neither a formula nor an integer
+     */
+    public static void read(Path file, Spreadsheet sheet, Progress progress) throws IOException,NumberFormatException {
+        read(file,sheet,null,progress);
+    }
+    /**
+     * loads file into the empty sheet, scanning and parsing chunks of it on pool if that is not null
+     * @param file
+     * @param sheet
+     * @param pool may be null
+     * @param progress may be null
+     * @throws IOException if the file cannot be read or exceeds Expr.Ref.MAX_ROWS x MAX_COLS
+     * @throws NumberFormatException if a cell holds neither a formula nor an integer; with several
+     * such cells, always the first one in the file is reported
+     */
+    public static void read(Path file, Spreadsheet sheet, ForkJoinPool pool, Progress progress) throws IOException,NumberFormatException {
+        if (pool!=null) {
+            readParallel(file,sheet,pool,progress);
+            return;
+        }
+        var reader = new CsvImport(sheet,0);
+        try (var channel = FileChannel.open(file,StandardOpenOption.READ)) {
+            long total = channel.size(), read = 0;
+            var buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            boolean eof = false;
+            while (!eof) {
+                int n = channel.read(buffer);
+                if (n<0) eof=true;
+                else read+=n;
+                var bytes = buffer.array();
+                int limit = buffer.position(), start = reader.lines(bytes,0,limit);
+                if (eof && start<limit) {
+                    // last line without line break
+                    reader.line(bytes,start,limit);
+                    start=limit;
+                }
+                else if (start==0 && limit==bytes.length) {
+                    // a single line longer than the buffer
+                    buffer = ByteBuffer.allocate(2*bytes.length).put(bytes);
+                    continue;
+                }
+                // move the unfinished line to the front, to be completed by the next read
+                System.arraycopy(bytes,start,bytes,0,limit-start);
+                buffer.position(limit-start);
+                if (progress!=null) progress.update(read,total,reader.row);
+            }
+        }
+    }
+    /**
+     * loads the windows of file one after the other; the chunks of a window are scanned concurrently
+     * once to count their lines, which gives the first row of each chunk, and once more to load them
+     */
+    private static void readParallel(Path file, Spreadsheet sheet, ForkJoinPool pool, Progress progress) throws IOException,NumberFormatException {
+        int parts = 4*pool.getParallelism();
+        try (var channel = FileChannel.open(file,StandardOpenOption.READ)) {
+            long total = channel.size(), read = 0;
+            var buffer = ByteBuffer.allocate(parts*CHUNK_SIZE);
+            int row = 0;
+            boolean eof = false;
+            while (!eof) {
+                while (buffer.hasRemaining() && !eof) {
+                    int n = channel.read(buffer);
+                    if (n<0) eof=true;
+                    else read+=n;
+                }
+                var bytes = buffer.array();
+                int limit = buffer.position(), end = limit;
+                if (!eof) {
+                    while (end>0 && bytes[end-1]!='\n') end--;
+                    if (end==0) {
+                        // a single line longer than the window
+                        buffer = ByteBuffer.allocate(2*bytes.length).put(bytes);
+                        continue;
+                    }
+                }
+                var chunks = new ArrayList<Chunk>();
+                for (int from=0; from<end; ) {
+                    int to = Math.min(end,from+Math.max(CHUNK_SIZE,end/parts));
+                    while (to<end && bytes[to-1]!='\n') to++;
+                    chunks.add(new Chunk(bytes,from,to));
+                    from=to;
+                }
+                runAll(pool,chunks,Chunk::count);
+                for (var c:chunks) {
+                    c.row=row;
+                    row+=c.lines;
+                }
+                runAll(pool,chunks,Chunk::scan);
+                for (var c:chunks)
+                    c.mergeInto(sheet);
+                System.arraycopy(bytes,end,bytes,0,limit-end);
+                buffer.position(limit-end);
+                if (progress!=null) progress.update(read,total,row);
+            }
+        }
+    }
+    private static void runAll(ForkJoinPool pool, List<Chunk> chunks, java.util.function.Consumer<Chunk> action){
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(chunks.stream()
+            .map(c -> ForkJoinTask.adapt(() -> action.accept(c)))
+            .toList())));
+    }
+    /**
+     * line-aligned slice of a window, which collects its cells on its own while scanned concurrently
+     * with the other chunks; a failure is kept until the chunk is merged
+     */
+    private static class Chunk extends CsvImport {
+        private final byte[] bytes;
+        private final int from,to;
+        private int lines;
+        private int size=0;
+        private int[] rows = new int[64], cols = new int[64], values = new int[64];
+        /** the formula of each cell, null for plain values */
+        private Expr[] formulae = new Expr[64];
+        private Exception error;
+
+        Chunk(byte[] bytes, int from, int to){
+            super(null,0);
+            this.bytes=bytes;
+            this.from=from;
+            this.to=to;
+        }
+        void count(){
+            for (int i=from;i<to;i++)
+                if (bytes[i]=='\n') lines++;
+            // only the last chunk of the file may end without line break
+            if (bytes[to-1]!='\n') lines++;
+        }
+        void scan(){
+            try {
+                int start = lines(bytes,from,to);
+                if (start<to) line(bytes,start,to);
+            }catch(IOException|NumberFormatException e){
+                error=e;
+            }
+        }
+        @Override
+        void value(int col, int value){
+            add(col,value,null);
+        }
+        @Override
+        void formula(int col, String source){
+            Expr formula;
+            try {
+                formula = Expr.parse(source);
+            }catch(Expr.Parser.Fail f){
+                // reported when the cell is evaluated, as by the sequential import
+                formula = new Expr.Deferred(source);
+            }
+            add(col,0,formula);
+        }
+        private void add(int col, int value, Expr formula){
+            if (size==rows.length) {
+                rows = Arrays.copyOf(rows,2*size);
+                cols = Arrays.copyOf(cols,2*size);
+                values = Arrays.copyOf(values,2*size);
+                formulae = Arrays.copyOf(formulae,2*size);
+            }
+            rows[size]=row;
+            cols[size]=col;
+            values[size]=value;
+            formulae[size++]=formula;
+        }
+        void mergeInto(Spreadsheet sheet) throws IOException,NumberFormatException {
+            for (int i=0;i<size;i++)
+                if (formulae[i]==null) sheet.loadValue(rows[i],cols[i],values[i]);
+                else sheet.loadFormula(rows[i],cols[i],formulae[i]);
+            // the cells before the error are kept, as with the sequential import
+            if (error instanceof IOException e) throw e;
+            if (error instanceof NumberFormatException e) throw e;
+        }
+    }
+    /**
+     * loads the complete lines within bytes[from..to) as the next rows
+     * @return the start of the unfinished line at the end
+     */
+    int lines(byte[] bytes, int from, int to) throws IOException {
+        int start = from;
+        for (int i=from;i<to;i++)
+            if (bytes[i]=='\n') {
+                line(bytes,start,i);
+                start=i+1;
+            }
+        return start;
+    }
+    /**
+     * loads the line bytes[from..to) as the next row, i.e. the cells between the semicolons
+     */
+    void line(byte[] bytes, int from, int to) throws IOException {
+        if (row>=Expr.Ref.MAX_ROWS)
+            throw new IOException("more than "+Expr.Ref.MAX_ROWS+" rows");
+        if (to>from && bytes[to-1]=='\r') to--;
+        int col = 0, start = from;
+        for (int i=from;i<=to;i++)
+            if (i==to || bytes[i]==';') {
+                if (i>start) {
+                    if (col>=Expr.Ref.MAX_COLS)
+                        throw new IOException("more than "+Expr.Ref.MAX_COLS+" columns in row "+(row+1));
+                    cell(bytes,start,i,col);
+                }
+                col++;
+                start=i+1;
+            }
+        row++;
+    }
+    /**
+     * loads the non empty cell bytes[from..to), either a formula starting with =, the label of an
+     * error starting with #, or an optionally signed integer
+     */
+    private void cell(byte[] bytes, int from, int to, int col){
+        if (bytes[from]=='=') {
+            formula(col,new String(bytes,from+1,to-from-1,StandardCharsets.UTF_8));
+            return;
+        }
+        if (bytes[from]=='#') {
+            var error = ErrorValue.ofLabel(new String(bytes,from,to-from,StandardCharsets.UTF_8));
+            if (error==null) throw notANumber(bytes,from,to,col);
+            value(col,error.code);
+            return;
+        }
+        int i = from;
+        boolean negative = bytes[i]=='-';
+        if (negative || bytes[i]=='+') i++;
+        long value = 0;
+        if (i==to) throw notANumber(bytes,from,to,col);
+        for (; i<to; i++) {
+            int digit = bytes[i]-'0';
+            if (digit<0 || digit>9) throw notANumber(bytes,from,to,col);
+            value = value*10+digit;
+            if (value>(long)Integer.MAX_VALUE+1) throw notANumber(bytes,from,to,col);
+        }
+        // the smallest ints stand for errors
+        if (negative ? -value<ErrorValue.MIN_VALUE : value>Integer.MAX_VALUE) throw notANumber(bytes,from,to,col);
+        value(col,(int)(negative ? -value : value));
+    }
+    /**
+     * stores the plain value of cell row/col
+     */
+    void value(int col, int value){
+        sheet.loadValue(row,col,value);
+    }
+    /**
+     * stores the formula of cell row/col, given as text without the leading =
+     */
+    void formula(int col, String source){
+        sheet.loadFormula(row,col,source);
+    }
+    private NumberFormatException notANumber(byte[] bytes, int from, int to, int col){
+        return new NumberFormatException("For input string: \""+new String(bytes,from,to-from,StandardCharsets.UTF_8)
+            +"\" in cell "+Expr.Ref.columnName(col)+(row+1));
+    }
+}
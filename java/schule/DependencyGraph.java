@@ -0,0 +1,315 @@
+package schule;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Keeps track of which cells reference which other cells. Every cell is identified by a packed
+ * row/col key (see {@link #key(int, int)}); for each cell we remember its precedents (the cells
+ * its formula reads) and its dependents (the cells whose formulae read it).
+ * Ranges are not expanded into their cells: a range precedent is kept as the pair of its corner
+ * keys. Where a range covers the whole slice of a column within a block of the CellStore, its
+ * cell depends on a virtual node for that column block, which in turn depends on all cells of
+ * the slice; only the ragged ends of a range are recorded as row intervals within their block.
+ * Thus a range costs one edge per column block, not one per cell.
+ */
+public class DependencyGraph {
+    private static final int ROW_BITS=Expr.Ref.ROW_BITS;
+    private static final long[] NO_CELLS = new long[0];
+    private Map<Long,long[]> precedents = new HashMap<>();
+    private Map<Long,long[]> rangePrecedents = new HashMap<>();
+    private Map<Long,Set<Long>> dependents = new HashMap<>();
+    /**
+     * a cell whose formula reads the rows from..to of the column block it is filed under
+     */
+    private record RangeDependent(int from, int to, long cell) {};
+    /** dependents via the ragged ends of ranges, by column block */
+    private Map<Long,PartialDependents> partialDependents = new HashMap<>();
+    /** dependents via ranges covering a whole column block, by column block */
+    private Map<Long,List<Long>> blockDependents = new HashMap<>();
+
+    /**
+     * packs row and col into a single key; columns take the bits right above the rows, which are
+     * limited to Expr.Ref.MAX_ROWS, so that the Long hash codes of the keys do not collide, neither
+     * for neighbouring cells nor for cells whose rows only differ in their upper bits
+     */
+    public static long key(int row, int col){
+        return ((long)col<<ROW_BITS) | row;
+    }
+    public static int row(long key){
+        return (int)key & ((1<<ROW_BITS)-1);
+    }
+    public static int col(long key){
+        return (int)(key>>>ROW_BITS);
+    }
+    /**
+     * @return keys of the distinct cells referenced by formula
+     */
+    public static Set<Long> references(Expr formula){
+        var refs = new HashSet<Long>();
+        formula.references(r -> refs.add(key(r.row,r.col)));
+        return refs;
+    }
+    /**
+     * @return corner keys of the ranges within formula, pairwise top left and bottom right
+     */
+    public static long[] ranges(Expr formula){
+        var ranges = new ArrayList<Long>();
+        formula.ranges(r -> {
+            ranges.add(key(r.from.row,r.from.col));
+            ranges.add(key(r.to.row,r.to.col));
+        });
+        return ranges.stream().mapToLong(Long::longValue).toArray();
+    }
+    /**
+     * @return the (negative) key of the virtual node for the slice of column col within block row blockRow
+     */
+    private static long blockNode(int blockRow, int col){
+        return ~key(blockRow,col);
+    }
+    private static boolean isBlockNode(long node){
+        return node<0;
+    }
+    /**
+     * replaces the precedents of cell with refs and ranges, rewiring the dependents of old and new precedents
+     * @param cell
+     * @param refs keys of all cells the formula of cell refers to
+     * @param ranges keys of the top left and bottom right corner of each range the formula of cell refers to
+     */
+    public void setPrecedents(long cell, Set<Long> refs, long[] ranges){
+        var old = precedents.remove(cell);
+        if (old!=null) {
+            for (var p:old) {
+                var deps = dependents.get(p);
+                deps.remove(cell);
+                if (deps.isEmpty()) dependents.remove(p);
+            }
+        }
+        var oldRanges = rangePrecedents.remove(cell);
+        if (oldRanges!=null) wireRanges(cell,oldRanges,false);
+        if (!refs.isEmpty()) {
+            precedents.put(cell,refs.stream().mapToLong(Long::longValue).toArray());
+            for (var p:refs)
+                dependents.computeIfAbsent(p,x->new HashSet<>()).add(cell);
+        }
+        if (ranges.length>0) {
+            rangePrecedents.put(cell,ranges);
+            wireRanges(cell,ranges,true);
+        }
+    }
+    /**
+     * adds (or removes) cell as dependent of every column block covered by ranges
+     */
+    private void wireRanges(long cell, long[] ranges, boolean add){
+        for (int i=0;i<ranges.length;i+=2) {
+            int r0=row(ranges[i]), r1=row(ranges[i+1]);
+            for (int c=col(ranges[i]);c<=col(ranges[i+1]);c++)
+                for (int b=r0>>>CellStore.ROW_SHIFT; b<=r1>>>CellStore.ROW_SHIFT; b++) {
+                    int first=b<<CellStore.ROW_SHIFT, last=first|(CellStore.BLOCK_ROWS-1);
+                    var node = blockNode(b,c);
+                    if (r0<=first && last<=r1) {
+                        if (add) blockDependents.computeIfAbsent(node,x->new ArrayList<>()).add(cell);
+                        else remove(blockDependents,node,d -> d==cell);
+                    }
+                    else if (add) partialDependents.computeIfAbsent(node,x->new PartialDependents())
+                        .add(new RangeDependent(Math.max(r0,first),Math.min(r1,last),cell),first,last);
+                    else {
+                        var partial = partialDependents.get(node);
+                        if (partial!=null && partial.remove(cell)) partialDependents.remove(node);
+                    }
+                }
+        }
+    }
+    private static <T> void remove(Map<Long,List<T>> map, long node, java.util.function.Predicate<T> filter){
+        var deps = map.get(node);
+        if (deps==null) return;
+        deps.removeIf(filter);
+        if (deps.isEmpty()) map.remove(node);
+    }
+    /**
+     * The ragged ends of ranges within one column block, split by the border of the block they
+     * touch and sorted such that finding those containing a row stops at the first one that cannot,
+     * so the cost is proportional to the ranges containing the row, plus those within the block
+     * that start at most span rows above it.
+     */
+    private static class PartialDependents {
+        /** ends starting at the first row of the block, by last row */
+        private final List<RangeDependent> bottoms = new ArrayList<>();
+        /** ends reaching the last row of the block, by first row */
+        private final List<RangeDependent> tops = new ArrayList<>();
+        /** ranges within the block, by first row, and the most rows any of them has spanned */
+        private final List<RangeDependent> inner = new ArrayList<>();
+        private int span=0;
+
+        void add(RangeDependent d, int first, int last){
+            if (d.from()==first) insert(bottoms,d,RangeDependent::to);
+            else if (d.to()==last) insert(tops,d,RangeDependent::from);
+            else {
+                insert(inner,d,RangeDependent::from);
+                span = Math.max(span,d.to()-d.from()+1);
+            }
+        }
+        /**
+         * removes the ends of the ranges of cell
+         * @return whether none are left
+         */
+        boolean remove(long cell){
+            bottoms.removeIf(d -> d.cell()==cell);
+            tops.removeIf(d -> d.cell()==cell);
+            inner.removeIf(d -> d.cell()==cell);
+            return bottoms.isEmpty() && tops.isEmpty() && inner.isEmpty();
+        }
+        /**
+         * hands the cells whose ranges contain row over to action
+         */
+        void forEach(int row, LongConsumer action){
+            for (int i=bottoms.size()-1; i>=0 && bottoms.get(i).to()>=row; i--)
+                action.accept(bottoms.get(i).cell());
+            for (int i=0; i<tops.size() && tops.get(i).from()<=row; i++)
+                action.accept(tops.get(i).cell());
+            for (int i=after(inner,row,RangeDependent::from)-1; i>=0 && inner.get(i).from()>row-span; i--)
+                if (inner.get(i).to()>=row) action.accept(inner.get(i).cell());
+        }
+        private static void insert(List<RangeDependent> list, RangeDependent d, ToIntFunction<RangeDependent> by){
+            list.add(after(list,by.applyAsInt(d),by),d);
+        }
+        /**
+         * @return index of the first element of list, sorted by by, whose key exceeds key
+         */
+        private static int after(List<RangeDependent> list, int key, ToIntFunction<RangeDependent> by){
+            int low=0, high=list.size();
+            while (low<high) {
+                int mid=(low+high)>>>1;
+                if (by.applyAsInt(list.get(mid))<=key) low=mid+1;
+                else high=mid;
+            }
+            return low;
+        }
+    }
+    /**
+     * @return keys of the distinct single cells read by the formula of cell; callers must not modify the array
+     */
+    public long[] precedentsOf(long cell){
+        return precedents.getOrDefault(cell,NO_CELLS);
+    }
+    /**
+     * @return corner keys of the ranges read by the formula of cell, pairwise top left and bottom right; callers must not modify the array
+     */
+    public long[] rangesOf(long cell){
+        return rangePrecedents.getOrDefault(cell,NO_CELLS);
+    }
+    /**
+     * hands the successors of node over to action: for a cell those reading it directly or via the
+     * ragged end of a range, plus the virtual node of its column block if a range covers that; for
+     * a virtual node the cells whose ranges cover its block. A successor reachable over several
+     * edges is handed over several times
+     * @param node
+     * @param action
+     */
+    private void forEachEdge(long node, LongConsumer action){
+        if (isBlockNode(node)) {
+            var deps = blockDependents.get(node);
+            if (deps!=null)
+                for (var d:deps) action.accept(d);
+            return;
+        }
+        var deps = dependents.get(node);
+        if (deps!=null)
+            for (var d:deps) action.accept(d);
+        int row = row(node);
+        var block = blockNode(row>>>CellStore.ROW_SHIFT,col(node));
+        var partial = partialDependents.get(block);
+        if (partial!=null) partial.forEach(row,action);
+        if (blockDependents.containsKey(block)) action.accept(block);
+    }
+    /**
+     * adds cell and all of its transitive dependents to into; cells already contained in into are
+     * not followed again, so the cost is proportional to the newly affected subgraph
+     * @param cell
+     * @param into
+     */
+    public void collectDependents(long cell, Set<Long> into){
+        var todo = new ArrayDeque<Long>();
+        var blocks = new HashSet<Long>();
+        if (into.add(cell)) todo.push(cell);
+        while (!todo.isEmpty()){
+            forEachEdge(todo.pop(), d -> {
+                if (isBlockNode(d) ? blocks.add(d) : into.add(d)) todo.push(d);
+            });
+        }
+    }
+    /**
+     * sorts cells such that each cell comes after all of its precedents within cells;
+     * cells on a cycle cannot be ordered and are appended at the end
+     * @param cells
+     * @return cells in topological order
+     */
+    public List<Long> topologicalOrder(Set<Long> cells){
+        var result = new ArrayList<Long>(cells.size());
+        var cyclic = new ArrayList<Long>();
+        levels(cells,cyclic).forEach(result::addAll);
+        result.addAll(cyclic);
+        return result;
+    }
+    /**
+     * partitions cells into levels (Kahn's algorithm), such that every cell only depends on cells
+     * of earlier levels; the cells of one level are thus independent of each other
+     * @param cells
+     * @param cyclic receives the cells that cannot be ordered since they are on or behind a cycle
+     * @return the levels of cells in topological order
+     */
+    public List<List<Long>> levels(Set<Long> cells, List<Long> cyclic){
+        var result = new ArrayList<List<Long>>();
+        // count the edges between cells, and via the virtual nodes of column blocks with dirty cells
+        var indegree = new HashMap<Long,Integer>();
+        var blocks = new ArrayList<Long>();
+        for (var c:cells)
+            forEachEdge(c, d -> {
+                if (isBlockNode(d)) {
+                    if (indegree.merge(d,1,Integer::sum)==1) blocks.add(d);
+                }
+                else if (cells.contains(d)) indegree.merge(d,1,Integer::sum);
+            });
+        for (var b:blocks)
+            forEachEdge(b, d -> {
+                if (cells.contains(d)) indegree.merge(d,1,Integer::sum);
+            });
+        var ready = new ArrayList<Long>();
+        for (var c:cells)
+            if (!indegree.containsKey(c)) ready.add(c);
+        while (!ready.isEmpty()){
+            result.add(ready);
+            var next = new ArrayList<Long>();
+            for (var c:ready)
+                release(c,indegree,next);
+            ready=next;
+        }
+        for (var c:indegree.keySet())
+            if (!isBlockNode(c)) cyclic.add(c);
+        return result;
+    }
+    /**
+     * removes the edges leaving node; successors without further incoming edges are added to ready,
+     * virtual nodes are released right away
+     */
+    private void release(long node, Map<Long,Integer> indegree, List<Long> ready){
+        forEachEdge(node, d -> {
+            var n = indegree.get(d);
+            if (n==null) return;
+            if (n>1) {
+                indegree.put(d,n-1);
+                return;
+            }
+            indegree.remove(d);
+            if (isBlockNode(d)) release(d,indegree,ready);
+            else ready.add(d);
+        });
+    }
+}
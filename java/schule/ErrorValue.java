@@ -0,0 +1,88 @@
+package schule;
+
+/**
+ * Errors which formulae evaluate to instead of throwing exceptions, e.g. 1/0 to #DIV/0!. They are
+ * ints like all other values, so that they are cached in the CellStore like any other result: the
+ * five smallest ints, which makes an error smaller than every ordinary value. So a single comparison
+ * of the minimum of the operands detects an error among them, see Expr.Op.apply, and the minimum of
+ * a range, which aggregates keep track of anyway, reveals an error within it.
+ * Operators and functions result in the error of their first erroneous operand, aggregates in the
+ * smallest error among their operands.
+ * So ordinary values start at MIN_VALUE: sheets and updates holding a smaller number are rejected
+ * like any other number out of range (see parse). Operators and aggregates compute in long and
+ * saturate results beyond the ordinary values to MIN_VALUE or Integer.MAX_VALUE (see saturate),
+ * so an overflow neither wraps around nor turns into an error.
+ */
+public enum ErrorValue {
+    DIV0("#DIV/0!","division by zero"),
+    CYCLE("#CYCLE!","circular reference"),
+    NAME("#NAME?","unknown function or malformed formula"),
+    REF("#REF!","reference out of range"),
+    VALUE("#VALUE!","range used as a single value, wrong number of arguments, or a function failed");
+
+    /** the largest error value */
+    public static final int LAST=Integer.MIN_VALUE+4;
+    /** the smallest ordinary value */
+    public static final int MIN_VALUE=LAST+1;
+    /** the int standing for this error */
+    public final int code;
+    private final String label,description;
+
+    ErrorValue(String label, String description){
+        this.code=Integer.MIN_VALUE+ordinal();
+        this.label=label;
+        this.description=description;
+    }
+    /**
+     * @return whether value is an error
+     */
+    public static boolean is(int value){
+        return value<=LAST;
+    }
+    /**
+     * @param value an exact result, computed in long
+     * @return value, or the nearest ordinary value, MIN_VALUE or Integer.MAX_VALUE, if it is beyond them
+     */
+    public static int saturate(long value){
+        return (int)Math.max(MIN_VALUE,Math.min(Integer.MAX_VALUE,value));
+    }
+    /**
+     * @param s a plain value: an ordinary value in decimal, or the label of an error, which is how
+     * CsvExport writes an erroneous value
+     * @return its int
+     * @throws NumberFormatException if s is neither, or smaller than MIN_VALUE
+     */
+    public static int parse(String s){
+        var error = ofLabel(s);
+        if (error!=null) return error.code;
+        int value = Integer.parseInt(s);
+        if (value<MIN_VALUE) throw new NumberFormatException("value out of range: "+s);
+        return value;
+    }
+    /**
+     * @param label e.g. #DIV/0!
+     * @return the error shown as label, null if there is none
+     */
+    public static ErrorValue ofLabel(String label){
+        for (var error:values())
+            if (error.label.equals(label)) return error;
+        return null;
+    }
+    /**
+     * @param value an error
+     * @return the error standing for value
+     */
+    public static ErrorValue of(int value){
+        return values()[value-Integer.MIN_VALUE];
+    }
+    public String description(){
+        return description;
+    }
+    /**
+     * @return the label shown in place of a value, e.g. #DIV/0!
+     */
+    @Override
+    public String toString(){
+        return label;
+    }
+}
@@ -1,73 +1,219 @@
 package schule;
 
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Queue;
-import java.util.Set;
 import java.util.Stack;
-import java.util.function.Function;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 public abstract class Expr {
     interface Context {
-        default int eval(int row,int col,Set<Expr> evalset) throws Exception {
+        default int eval(int row,int col) throws Exception {
             return 0;
         };
-        default Function<List<Integer>,Integer> lookupFunction(String name) {
-            return null;
-        };
         default int lookupVariable(String name) {
             return 0;
         };
+        /**
+         * feeds the values of all cells within range into acc
+         */
+        default void aggregate(Range range,Aggregate.Accumulator acc) throws Exception {
+        };
+        /**
+         * @return the values of the populated cells within range, column by column, which are passed
+         * to a SheetFunction taking any number of arguments
+         */
+        default int[] values(Range range) throws Exception {
+            return new int[0];
+        };
+        /**
+         * @return number identifying the recalculation in progress, during which no cell changes, so
+         * that shared subexpressions may cache their values; 0 outside of recalculations
+         */
+        default long epoch() {
+            return 0;
+        };
+        /**
+         * @return row of the cell whose formula is being evaluated, to which relative references refer
+         */
+        default int originRow() {
+            return 0;
+        };
+        /**
+         * @return column of the cell whose formula is being evaluated
+         */
+        default int originCol() {
+            return 0;
+        };
 
     }
-    public int eval(Context sheet)throws Exception {
-        return eval(sheet,new HashSet<Expr>());
-    }
     /**
-     * evaluate this (sub)expression, considering evalset as already evaluated cells (i.o. to detect cyclic evals)
+     * evaluate this (sub)expression; detecting cyclic references is up to the sheet
      * @param sheet
-     * @param evalset
      * @return
      * @throws Exception
      */
-    public abstract int eval(Context sheet,Set<Expr> evalset) throws Exception;    
+    public abstract int eval(Context sheet) throws Exception;    
     /**
      * puts a String representation of this expression as a formula on the stream
      * @param stream
      */
     public abstract void replicateTo(PrintStream stream);
+    /**
+     * @return this (sub)expression placed into the cell at row and col, i.e. with its relative
+     * references resolved; this if it has none
+     * @param row
+     * @param col
+     */
+    public Expr at(int row, int col) {
+        return this;
+    }
+    /**
+     * hands every cell reference occurring in this (sub)expression over to sink
+     * @param sink
+     */
+    public void references(Consumer<Ref> sink) {
+    }
+    /**
+     * hands every range occurring in this (sub)expression over to sink
+     * @param sink
+     */
+    public void ranges(Consumer<Range> sink) {
+    }
+    /**
+     * @return whether this (sub)expression calls a function that is not pure, see SheetFunction.pure,
+     * so that its value may change without any of its precedents changing
+     */
+    public boolean isVolatile() {
+        return false;
+    }
+    /**
+     * evaluator for an expression, obtained by compiling its tree into nested closures
+     */
+    @FunctionalInterface
+    public interface Compiled {
+        int eval(Context sheet) throws Exception;
+    }
+    private Compiled compiled;
+    /**
+     * @return the compiled evaluator for this expression, compiling it on first use
+     */
+    public Compiled compiled(){
+        if (compiled==null) compiled=compile();
+        return compiled;
+    }
+    /**
+     * translates this (sub)expression into a closure, resolving everything that does not depend on the sheet upfront
+     * @return
+     */
+    protected abstract Compiled compile();
+    /**
+     * writes this (sub)expression in pre-order as a compact binary encoding, which readFrom turns
+     * back into an expression without parsing
+     * @param out
+     * @throws IOException
+     */
+    public abstract void writeTo(DataOutput out) throws IOException;
+    /** node tags of the binary encoding */
+    private static final byte CONST=0,VAR=1,REF=2,RANGE=3,BINEX=4,CALLEX=5,SOURCE=6;
+    /**
+     * reads an expression written by writeTo, starting at the position of in and advancing it
+     * @param in
+     * @return
+     */
+    public static Expr readFrom(ByteBuffer in){
+        var tag = in.get();
+        switch (tag){
+            case CONST:  return new Const(in.getInt());
+            case VAR:    return new Var(readString(in));
+            case REF:    return new Ref(in.getInt(),in.getInt());
+            case RANGE:  return new Range(new Ref(in.getInt(),in.getInt()),new Ref(in.getInt(),in.getInt()));
+            case BINEX: {
+                var op = Op.values()[in.get()];
+                var l = readFrom(in);
+                return new BinEx(l,op,readFrom(in));
+            }
+            case CALLEX: {
+                var name = readString(in);
+                var params = new ArrayList<Expr>();
+                for (int n=in.getInt(); n>0; n--)
+                    params.add(readFrom(in));
+                return new CallEx(name,params);
+            }
+            case SOURCE: return new Deferred(readString(in));
+            default: throw new IllegalArgumentException("unknown node tag "+tag);
+        }
+    }
+    private static void writeString(DataOutput out, String s) throws IOException {
+        var bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    private static String readString(ByteBuffer in){
+        var bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes,StandardCharsets.UTF_8);
+    }
     public static class Const extends Expr{
         int value;
         @Override
-        public int eval(Context sheet,Set<Expr> evalset) {
+        public int eval(Context sheet) {
             return value;
         }
         public Const(int val){
             value=val;
         }
         @Override
+        protected Compiled compile() {
+            final int v=value;
+            return sheet -> v;
+        }
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeByte(CONST);
+            out.writeInt(value);
+        }
+        @Override
         public void replicateTo(PrintStream stream) {
-            stream.print(value);
+            // an error as its label, which the parser reads back as an ERROR token
+            if (ErrorValue.is(value)) stream.print(ErrorValue.of(value).toString());
+            else stream.print(value);
         }
         @Override
         public String toString() {
-            return ""+value;
+            return ErrorValue.is(value) ? ErrorValue.of(value).toString() : ""+value;
         }
     }
     public static class Var extends Expr {
         String name;
         @Override
-        public int eval(Context sheet,Set<Expr> evalset) {
+        public int eval(Context sheet) {
             return sheet.lookupVariable(name);
         }
         public Var(String name){
             this.name=name;
         }
         @Override
+        protected Compiled compile() {
+            final String n=name;
+            return sheet -> sheet.lookupVariable(n);
+        }
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeByte(VAR);
+            writeString(out,name);
+        }
+        @Override
         public void replicateTo(PrintStream stream) {
             stream.print(name);
         }
@@ -77,38 +223,273 @@ public abstract class Expr {
         }
     }
     public static class Ref extends Expr {
+        /** references are limited to the rows 1..1048576 and the columns A..XFD */
+        public static final int ROW_BITS=20;
+        public static final int MAX_ROWS=1<<ROW_BITS;
+        public static final int COL_BITS=14;
+        public static final int MAX_COLS=1<<COL_BITS;
         int col,row;
+        /** whether col and row are offsets from the cell of the formula, as in R1C1 notation */
+        boolean relative;
+        @Override
+        public int eval(Context sheet) throws Exception{
+            if (relative) return sheet.eval(sheet.originRow()+row,sheet.originCol()+col);
+            return sheet.eval(row,col);
+        }
         @Override
-        public int eval(Context sheet,Set<Expr> evalset) throws Exception{
-            return sheet.eval(row,col,evalset);
+        public void references(Consumer<Ref> sink) {
+            sink.accept(this);
         }
+        /**
+         * @param ref textual reference, e.g. B7 or XFD1048576
+         */
         public Ref(String ref){
-            this((ref.charAt(0)) - 'A',Integer.parseInt(ref.substring(1))-1);
+            int i=0;
+            // both stop growing beyond the int range, so that too many letters or digits stay out of bounds
+            long c=0;
+            while (Character.isLetter(ref.charAt(i)))
+                c = Math.min(c*26 + Character.toUpperCase(ref.charAt(i++))-'A'+1,Integer.MAX_VALUE);
+            long r=0;
+            while (i<ref.length())
+                r = Math.min(r*10 + ref.charAt(i++)-'0',Integer.MAX_VALUE);
+            this.col=(int)c-1;
+            this.row=(int)r-1;
+        }
+        Ref(int col,int row) { this.col=col;this.row=row;}
+        Ref(int col,int row,boolean relative) { this(col,row);this.relative=relative;}
+        @Override
+        protected Compiled compile() {
+            final int r=row,c=col;
+            if (relative) return sheet -> sheet.eval(sheet.originRow()+r,sheet.originCol()+c);
+            return sheet -> sheet.eval(r,c);
+        }
+        @Override
+        public Expr at(int row, int col) {
+            return relative ? new Ref(col+this.col,row+this.row) : this;
+        }
+        /**
+         * @return whether this reference addresses a cell within MAX_ROWS x MAX_COLS
+         */
+        public boolean inBounds(){
+            return row>=0 && row<MAX_ROWS && col>=0 && col<MAX_COLS;
+        }
+        /**
+         * @param col 0-based column index
+         * @return bijective base-26 column name, i.e. A..Z, AA..ZZ, AAA..
+         */
+        public static String columnName(int col){
+            var name = new StringBuilder();
+            for (col++; col>0; col=(col-1)/26)
+                name.insert(0,(char)('A'+(col-1)%26));
+            return name.toString();
+        }
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            if (relative) throw new IllegalStateException("relative reference "+this+" has to be placed first");
+            out.writeByte(REF);
+            out.writeInt(col);
+            out.writeInt(row);
         }
-        private Ref(int col,int row) { this.col=col;this.row=row;}
         @Override
         public void replicateTo(PrintStream stream) {
-            stream.print(""+((char)(col+'A'))+(row+1));
+            stream.print(toString());
+        }
+        @Override
+        public String toString() {
+            return relative ? "R["+row+"]C["+col+"]" : columnName(col)+(row+1);
+        }
+    }
+    /**
+     * rectangular range of cells, e.g. A1:C100; only valid as argument of an aggregate function
+     */
+    public static class Range extends Expr {
+        /** top left and bottom right corner */
+        Ref from,to;
+        public Range(Ref a,Ref b){
+            from=new Ref(Math.min(a.col,b.col),Math.min(a.row,b.row));
+            to=new Ref(Math.max(a.col,b.col),Math.max(a.row,b.row));
+        }
+        @Override
+        public int eval(Context sheet) {
+            return ErrorValue.VALUE.code;
+        }
+        @Override
+        protected Compiled compile() {
+            return sheet -> ErrorValue.VALUE.code;
+        }
+        @Override
+        public void ranges(Consumer<Range> sink) {
+            sink.accept(this);
+        }
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeByte(RANGE);
+            out.writeInt(from.col);
+            out.writeInt(from.row);
+            out.writeInt(to.col);
+            out.writeInt(to.row);
+        }
+        @Override
+        public void replicateTo(PrintStream stream) {
+            from.replicateTo(stream);
+            stream.print(":");
+            to.replicateTo(stream);
+        }
+        @Override
+        public String toString() {
+            return from+":"+to;
+        }
+    }
+    /**
+     * binary operators, resolved from their symbol once at parse time
+     */
+    public static enum Op {
+        ADD("+"),
+        SUB("-"),
+        MUL("*"),
+        DIV("/");
+        private String symbol;
+        Op(String symbol){
+            this.symbol=symbol;
+        }
+        public static Op of(String symbol){
+            for (var op:values())
+                if (op.symbol.equals(symbol)) return op;
+            throw new IllegalArgumentException("unknown operator "+symbol);
+        }
+        /**
+         * @return the result of l op r, saturated to the ordinary values, or the error of the first
+         * erroneous operand
+         */
+        public int apply(int l,int r){
+            // errors are smaller than all other values
+            if (ErrorValue.is(Math.min(l,r))) return error(l,r);
+            switch (this){
+                case ADD: return ErrorValue.saturate((long)l + r);
+                case SUB: return ErrorValue.saturate((long)l - r);
+                case MUL: return ErrorValue.saturate((long)l * r);
+                // the quotient of ordinary values is no error
+                case DIV: return r==0 ? ErrorValue.DIV0.code : l / r;
+                default: return 0;
+            }
+        }
+        /**
+         * @return the error among l and r, l if both are errors
+         */
+        static int error(int l,int r){
+            return ErrorValue.is(l) ? l : r;
         }
         @Override
         public String toString() {
-            return ""+(char)('A'+col)+(row+1);
+            return symbol;
         }
     }
-    public static class BinEx extends Expr {
+    /**
+     * operation on subexpressions; if the Optimizer finds it in several formulae of a sheet, its value
+     * is computed once per recalculation and cached here
+     */
+    abstract static class Composite extends Expr {
+        /** whether to cache the value, set by the Optimizer for shared subexpressions */
+        boolean memo;
+        /** whether this contains relative references, so that its value depends on the cell of the formula */
+        boolean relative;
+        /** key under which the Optimizer interned this node, which keeps the entry alive */
+        Object internKey;
+        /** value in the recalculation epoch, for the formula of the cell at row and col if relative */
+        private record Memo(long epoch, int row, int col, int value) {}
+        private volatile Memo cached;
+        /**
+         * evaluates this (sub)expression, bypassing the cache
+         */
+        protected abstract int evalOnce(Context sheet) throws Exception;
+        /**
+         * translates this (sub)expression into a closure that bypasses the cache
+         */
+        protected abstract Compiled compileOnce();
+        @Override
+        public final int eval(Context sheet) throws Exception {
+            return memo ? memoized(sheet,null) : evalOnce(sheet);
+        }
+        @Override
+        protected final Compiled compile() {
+            final Compiled once=compileOnce();
+            if (!memo) return once;
+            return sheet -> memoized(sheet,once);
+        }
+        /**
+         * @return the value cached in the current recalculation, evaluating this via once (or
+         * evalOnce if null) and caching the result if there is none
+         */
+        private int memoized(Context sheet, Compiled once) throws Exception {
+            long epoch = sheet.epoch();
+            if (epoch==0) return once==null ? evalOnce(sheet) : once.eval(sheet);
+            int row = relative ? sheet.originRow() : 0, col = relative ? sheet.originCol() : 0;
+            var m = cached;
+            if (m!=null && m.epoch==epoch && m.row==row && m.col==col) return m.value;
+            int value = once==null ? evalOnce(sheet) : once.eval(sheet);
+            cached = new Memo(epoch,row,col,value);
+            return value;
+        }
+    }
+    public static class BinEx extends Composite {
         Expr l,r;
-        String op;
+        Op op;
         @Override
-        public int eval(Context sheet,Set<Expr> evalset) throws Exception {
+        protected int evalOnce(Context sheet) throws Exception {
+            return op.apply(l.eval(sheet),r.eval(sheet));
+        }
+        @Override
+        protected Compiled compileOnce() {
+            final Compiled cl=l.compile(),cr=r.compile();
             switch (op){
-                case "+": return l.eval(sheet,evalset) + r.eval(sheet,evalset);
-                case "*": return l.eval(sheet,evalset) * r.eval(sheet,evalset);
-                case "/": return l.eval(sheet,evalset) / r.eval(sheet,evalset);
-                case "-": return l.eval(sheet,evalset) - r.eval(sheet,evalset);
-                default: return 0;
+                case ADD: return sheet -> {
+                    int a = cl.eval(sheet), b = cr.eval(sheet);
+                    return ErrorValue.is(Math.min(a,b)) ? Op.error(a,b) : ErrorValue.saturate((long)a + b);
+                };
+                case SUB: return sheet -> {
+                    int a = cl.eval(sheet), b = cr.eval(sheet);
+                    return ErrorValue.is(Math.min(a,b)) ? Op.error(a,b) : ErrorValue.saturate((long)a - b);
+                };
+                case MUL: return sheet -> {
+                    int a = cl.eval(sheet), b = cr.eval(sheet);
+                    return ErrorValue.is(Math.min(a,b)) ? Op.error(a,b) : ErrorValue.saturate((long)a * b);
+                };
+                case DIV: return sheet -> {
+                    int a = cl.eval(sheet), b = cr.eval(sheet);
+                    return ErrorValue.is(Math.min(a,b)) ? Op.error(a,b) : b==0 ? ErrorValue.DIV0.code : a / b;
+                };
+                default: throw new IllegalStateException("unknown operator "+op);
             }
         }
-        public BinEx(Expr l,String op,Expr r) { this.l=l;this.op=op;this.r=r;}
+        @Override
+        public void references(Consumer<Ref> sink) {
+            l.references(sink);
+            r.references(sink);
+        }
+        @Override
+        public void ranges(Consumer<Range> sink) {
+            l.ranges(sink);
+            r.ranges(sink);
+        }
+        @Override
+        public boolean isVolatile() {
+            return l.isVolatile() || r.isVolatile();
+        }
+        public BinEx(Expr l,String op,Expr r) { this(l,Op.of(op),r);}
+        public BinEx(Expr l,Op op,Expr r) { this.l=l;this.op=op;this.r=r;}
+        @Override
+        public Expr at(int row, int col) {
+            var pl = l.at(row,col);
+            var pr = r.at(row,col);
+            return pl==l && pr==r ? this : new BinEx(pl,op,pr);
+        }
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeByte(BINEX);
+            out.writeByte(op.ordinal());
+            l.writeTo(out);
+            r.writeTo(out);
+        }
         @Override
         public void replicateTo(PrintStream stream) {
             stream.print("(");
@@ -122,20 +503,214 @@ public abstract class Expr {
             return "("+l+" "+op+" "+r+")";
         }
     }
-    public static class CallEx extends Expr {
+    public static class CallEx extends Composite {
         List<Expr> params;
         String name;
+        /** non-null if this is a call of an aggregate function, which accepts ranges */
+        Aggregate aggregate;
+        /** otherwise the function called, null if there is none of that name */
+        SheetFunction function;
         public CallEx(String name, List<Expr> params){
             this.name=name;
             this.params=params;
+            this.aggregate=Aggregate.of(name);
+            if (aggregate==null) function=Functions.of(name);
+        }
+        /**
+         * a call of the same function as call, with params instead of its parameters
+         */
+        CallEx(CallEx call, List<Expr> params){
+            this.name=call.name;
+            this.params=params;
+            this.aggregate=call.aggregate;
+            this.function=call.function;
+        }
+        /**
+         * @return what Metrics counts the calls by: the aggregate or function resolved at parse time,
+         * or the name if there is no function of that name
+         */
+        private Object counted(){
+            return aggregate!=null ? aggregate : function!=null ? function : name.toUpperCase(Locale.ROOT);
+        }
+        /**
+         * @return whether the value depends on nothing but the arguments and the call has no side
+         * effects, as for aggregates and pure functions
+         */
+        boolean pure(){
+            return aggregate!=null || function!=null && function.pure();
+        }
+        @Override
+        public Expr at(int row, int col) {
+            var placed = new ArrayList<Expr>(params.size());
+            boolean same = true;
+            for (var p:params) {
+                var q = p.at(row,col);
+                placed.add(q);
+                same &= q==p;
+            }
+            return same ? this : new CallEx(this,placed);
         }
         @Override
-        public int eval(Context sheet,Set<Expr> evalset) throws Exception {
-            List<Integer> l = new LinkedList<>();
-            for (var e:params){
-                l.add(e.eval(sheet, evalset));
+        protected int evalOnce(Context sheet) throws Exception {
+            if (!Metrics.enabled) return call(sheet);
+            long start = System.nanoTime();
+            try {
+                return call(sheet);
+            }finally{
+                Metrics.called(counted(),name,start);
+            }
+        }
+        private int call(Context sheet) throws Exception {
+            if (aggregate!=null) {
+                var acc = aggregate.accumulator();
+                for (var e:params){
+                    if (e instanceof Range) sheet.aggregate((Range)e,acc);
+                    else acc.add(e.eval(sheet));
+                }
+                return acc.result();
             }
-            return sheet.lookupFunction(name).apply(l);
+            if (function==null) return ErrorValue.NAME.code;
+            int arity = function.arity();
+            if (arity==SheetFunction.VARIADIC) {
+                var args = new int[params.size()];
+                int n = 0;
+                for (var e:params) {
+                    if (!(e instanceof Range r)) args[n++] = e.eval(sheet);
+                    else {
+                        var cells = sheet.values(r);
+                        args = expand(args,n,cells);
+                        n += cells.length;
+                    }
+                }
+                return apply(function,args);
+            }
+            if (arity!=params.size()) return ErrorValue.VALUE.code;
+            if (arity==1) return apply(function,params.get(0).eval(sheet));
+            if (arity==2) return apply(function,params.get(0).eval(sheet),params.get(1).eval(sheet));
+            var args = new int[arity];
+            for (int i=0;i<arity;i++)
+                args[i] = params.get(i).eval(sheet);
+            return apply(function,args);
+        }
+        /**
+         * @return args with the values of a range put in place of the argument at n, which is followed
+         * by the values
+         */
+        private static int[] expand(int[] args, int n, int[] values){
+            var expanded = Arrays.copyOf(args,args.length-1+values.length);
+            System.arraycopy(values,0,expanded,n,values.length);
+            return expanded;
+        }
+        /**
+         * @return f applied to its arguments, or instead the first error among them, or #VALUE! if f fails
+         */
+        private static int apply(SheetFunction f, int a){
+            if (ErrorValue.is(a)) return a;
+            try {
+                return f.apply(a);
+            }catch(RuntimeException e){
+                return ErrorValue.VALUE.code;
+            }
+        }
+        private static int apply(SheetFunction f, int a, int b){
+            if (ErrorValue.is(Math.min(a,b))) return Op.error(a,b);
+            try {
+                return f.apply(a,b);
+            }catch(RuntimeException e){
+                return ErrorValue.VALUE.code;
+            }
+        }
+        private static int apply(SheetFunction f, int[] args){
+            for (int a:args)
+                if (ErrorValue.is(a)) return a;
+            try {
+                return f.apply(args);
+            }catch(RuntimeException e){
+                return ErrorValue.VALUE.code;
+            }
+        }
+        @Override
+        protected Compiled compileOnce() {
+            final String n=name;
+            final Object counted=counted();
+            final Compiled call=aggregate!=null ? compileAggregate() : compileCall();
+            return sheet -> {
+                if (!Metrics.enabled) return call.eval(sheet);
+                long start = System.nanoTime();
+                try {
+                    return call.eval(sheet);
+                }finally{
+                    Metrics.called(counted,n,start);
+                }
+            };
+        }
+        private Compiled compileCall() {
+            final SheetFunction f=function;
+            if (f==null) return sheet -> ErrorValue.NAME.code;
+            int arity = f.arity();
+            if (arity!=SheetFunction.VARIADIC && arity!=params.size()) return sheet -> ErrorValue.VALUE.code;
+            final Compiled[] args=params.stream().map(Expr::compile).toArray(Compiled[]::new);
+            if (arity==1) {
+                final Compiled a0=args[0];
+                return sheet -> apply(f,a0.eval(sheet));
+            }
+            if (arity==2) {
+                final Compiled b0=args[0],b1=args[1];
+                return sheet -> apply(f,b0.eval(sheet),b1.eval(sheet));
+            }
+            // ranges are passed cell by cell to variadic functions only, to others they are #VALUE!
+            final Range[] ranges=params.stream().map(p -> arity==SheetFunction.VARIADIC && p instanceof Range r ? r : null).toArray(Range[]::new);
+            return sheet -> {
+                var values = new int[args.length];
+                int i = 0;
+                for (int k=0;k<args.length;k++) {
+                    if (ranges[k]==null) values[i++] = args[k].eval(sheet);
+                    else {
+                        var cells = sheet.values(ranges[k]);
+                        values = expand(values,i,cells);
+                        i += cells.length;
+                    }
+                }
+                return apply(f,values);
+            };
+        }
+        private Compiled compileAggregate() {
+            final Aggregate a=aggregate;
+            final Range[] ranges=params.stream().filter(p->p instanceof Range).toArray(Range[]::new);
+            final Compiled[] args=params.stream().filter(p->!(p instanceof Range)).map(Expr::compile).toArray(Compiled[]::new);
+            return sheet -> {
+                var acc = a.accumulator();
+                for (var arg:args)
+                    acc.add(arg.eval(sheet));
+                for (var range:ranges)
+                    sheet.aggregate(range,acc);
+                return acc.result();
+            };
+        }
+        @Override
+        public void references(Consumer<Ref> sink) {
+            for (var e:params)
+                e.references(sink);
+        }
+        @Override
+        public void ranges(Consumer<Range> sink) {
+            for (var e:params)
+                e.ranges(sink);
+        }
+        @Override
+        public boolean isVolatile() {
+            if (function!=null && !function.pure()) return true;
+            for (var e:params)
+                if (e.isVolatile()) return true;
+            return false;
+        }
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeByte(CALLEX);
+            writeString(out,name);
+            out.writeInt(params.size());
+            for (var e:params)
+                e.writeTo(out);
         }
         @Override
         public void replicateTo(PrintStream stream) {
@@ -154,6 +729,138 @@ public abstract class Expr {
             return "("+name+"("+p+"))";
         }
     }
+    /**
+     * formula that is only kept as text until it is needed, e.g. while loading large sheets;
+     * it is parsed on first use, and a syntax error surfaces as Parser.Fail at that point, while
+     * evaluating it results in the error value of the failure
+     */
+    public static class Deferred extends Expr {
+        private final String source;
+        private Expr parsed;
+        /**
+         * @param source formula without the leading =, e.g. A1*5+B3
+         */
+        public Deferred(String source){
+            this.source=source;
+        }
+        /**
+         * @return the expression tree of the formula, parsing it on first call
+         * @throws Parser.Fail
+         */
+        public Expr parse() throws Parser.Fail {
+            if (parsed==null) parsed=Expr.parse(source);
+            return parsed;
+        }
+        @Override
+        public int eval(Context sheet) throws Exception {
+            try {
+                return parse().eval(sheet);
+            }catch(Parser.Fail f){
+                return f.error().code;
+            }
+        }
+        @Override
+        protected Compiled compile() {
+            return sheet -> {
+                try {
+                    return parse().compiled().eval(sheet);
+                }catch(Parser.Fail f){
+                    return f.error().code;
+                }
+            };
+        }
+        @Override
+        public void references(Consumer<Ref> sink) {
+            try {
+                parse().references(sink);
+            }catch(Parser.Fail f){
+                // a formula that does not parse refers to nothing
+            }
+        }
+        @Override
+        public void ranges(Consumer<Range> sink) {
+            try {
+                parse().ranges(sink);
+            }catch(Parser.Fail f){
+                // a formula that does not parse refers to nothing
+            }
+        }
+        @Override
+        public boolean isVolatile() {
+            try {
+                return parse().isVolatile();
+            }catch(Parser.Fail f){
+                return false;
+            }
+        }
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            try {
+                parse().writeTo(out);
+            }catch(Parser.Fail f){
+                // keep the text, so that the error shows up again once the formula is evaluated
+                out.writeByte(SOURCE);
+                writeString(out,source);
+            }
+        }
+        @Override
+        public void replicateTo(PrintStream stream) {
+            stream.print(source);
+        }
+        @Override
+        public String toString() {
+            return source;
+        }
+    }
+    /**
+     * formula as entered, together with the equivalent tree the Optimizer made of it: the optimized
+     * tree is evaluated, while the formula is written out as entered; the original is placed
+     * already, the optimized tree may contain relative references
+     */
+    public static class Optimized extends Expr {
+        final Expr original,optimized;
+        Optimized(Expr original, Expr optimized){
+            this.original=original;
+            this.optimized=optimized;
+        }
+        @Override
+        public int eval(Context sheet) throws Exception {
+            return optimized.eval(sheet);
+        }
+        @Override
+        public Expr at(int row, int col) {
+            var placed = optimized.at(row,col);
+            return placed==optimized ? this : new Optimized(original,placed);
+        }
+        @Override
+        protected Compiled compile() {
+            return optimized.compile();
+        }
+        @Override
+        public void references(Consumer<Ref> sink) {
+            original.references(sink);
+        }
+        @Override
+        public void ranges(Consumer<Range> sink) {
+            original.ranges(sink);
+        }
+        @Override
+        public boolean isVolatile() {
+            return original.isVolatile();
+        }
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            original.writeTo(out);
+        }
+        @Override
+        public void replicateTo(PrintStream stream) {
+            original.replicateTo(stream);
+        }
+        @Override
+        public String toString() {
+            return original.toString();
+        }
+    }
 
     public static Expr shuntyard(String expression, Context ctx) throws Parser.Fail {
         var tokenstream = scan(expression);
@@ -166,42 +873,131 @@ public abstract class Expr {
     }
 
     public static Expr parse(String expression)throws Parser.Fail {
-        var tokenstream = scan(expression);
-        // we sort out all the pesky whitespaces
-        tokenstream = tokenstream.stream()
-            .filter(c->c.type!=TokenType.WHITESPACE)
-            .collect(Collectors.toList());
-        // hand over the token stream to the parser
-        var p = new Parser(tokenstream);
+        if (Metrics.enabled) {
+            var event = new Metrics.Parse();
+            event.begin();
+            long start = System.nanoTime();
+            try {
+                return parseText(expression);
+            }finally{
+                Metrics.parsed(expression,start,event);
+            }
+        }
+        return parseText(expression);
+    }
+    private static Expr parseText(String expression)throws Parser.Fail {
+        // hand over the token stream to the parser, which skips the pesky whitespaces itself
+        var p = new Parser(scan(expression));
         // return a java object representation of the syntactic structure of the expression
         return p.expr();
     }
     /**
-     * Iteratively decapitate the input string, matching the current start of the string with the patterns
-     * for the respective tokens of our spreadsheet language. 
+     * Scans the input string in a single pass from left to right, classifying each lexeme by its first
+     * character(s). The tokens only record their offsets into expression, no substrings are created.
+     * Yields the same tokens as scanRegex, i.e. the first TokenType whose pattern matches wins.
      * @param expression
      * @return the input expression converted to a List of classified tokens
      */
     public static List<Token> scan(String expression){
+        var tokenstream = new ArrayList<Token>();
+        int n = expression.length(), i = 0;
+        while (i<n){
+            int start = i;
+            TokenType type;
+            ErrorValue error;
+            char c = expression.charAt(i++);
+            switch (c){
+                case '*': case '/': type=TokenType.MULOP; break;
+                case '+': case '-': type=TokenType.ADDOP; break;
+                case ',': type=TokenType.COMMA; break;
+                case '(': type=TokenType.LBRACK; break;
+                case ')': type=TokenType.RBRACK; break;
+                case ':': type=TokenType.RANGE; break;
+                case ' ': case '\t': case '\n': case '\u000B': case '\f': case '\r':
+                    type=TokenType.WHITESPACE; break;
+                default:
+                    if (isDigit(c)) {
+                        while (i<n && isDigit(expression.charAt(i))) i++;
+                        type=TokenType.INTCONST;
+                    }
+                    else if (isLetter(c)) {
+                        while (i<n && isLetter(expression.charAt(i))) i++;
+                        type=TokenType.NAME;
+                        // REF: 1 to 3 letters, a row number without leading 0, and no further word character
+                        if (i-start<=3 && i<n && expression.charAt(i)>='1' && expression.charAt(i)<='9') {
+                            while (i<n && isDigit(expression.charAt(i))) i++;
+                            if (i==n || !isWordChar(expression.charAt(i))) type=TokenType.REF;
+                        }
+                        while (i<n && isWordChar(expression.charAt(i))) i++;
+                    }
+                    else if (c=='_') {
+                        while (i<n && isWordChar(expression.charAt(i))) i++;
+                        type=TokenType.NAME;
+                    }
+                    else if (c=='#' && (error=errorLabel(expression,start))!=null) {
+                        i = start+error.toString().length();
+                        type=TokenType.ERROR;
+                    }
+                    else {
+                        // swallow the rest of the line
+                        while (i<n && !isLineTerminator(expression.charAt(i))) i++;
+                        type=TokenType.CATCHALL;
+                    }
+            }
+            tokenstream.add(new Token(type,expression,start,i));
+        }
+        tokenstream.add(new Token(TokenType.EOF,expression,n,n));
+        return tokenstream;
+    }
+    /**
+     * @return the error whose label starts at offset start of expression, null if there is none
+     */
+    private static ErrorValue errorLabel(String expression, int start){
+        for (var error:ErrorValue.values())
+            if (expression.startsWith(error.toString(),start)) return error;
+        return null;
+    }
+    private static boolean isDigit(char c){
+        return c>='0' && c<='9';
+    }
+    private static boolean isLetter(char c){
+        return (c>='a' && c<='z') || (c>='A' && c<='Z');
+    }
+    private static boolean isWordChar(char c){
+        return isLetter(c) || isDigit(c) || c=='_';
+    }
+    private static boolean isLineTerminator(char c){
+        return c=='\n' || c=='\r' || c=='\u0085' || c=='\u2028' || c=='\u2029';
+    }
+    /**
+     * Iteratively decapitate the input string, matching the current start of the string with the patterns
+     * for the respective tokens of our spreadsheet language. This is the reference definition for the
+     * tokens produced by scan, which does the same in a single pass.
+     * @param expression
+     * @return the input expression converted to a List of classified tokens
+     */
+    public static List<Token> scanRegex(String expression){
         var tokenstream = new LinkedList<Token>();
+        var input = expression;
         // repeat process as long as there is input to be scanned
-        scanning: while (expression.length()>0){
+        scanning: while (input.length()>0){
             // iterate through all token types
             for (var tok:TokenType.values()) {
                 // build a matcher for the current pattern
                 var patty = tok.getPattern();
-                var matchy = patty.matcher(expression);
+                var matchy = patty.matcher(input);
                 if (matchy.find()){ // input matched the pattern for this token type
                     var lex=matchy.group();
-                    tokenstream.add(new Token(tok,lex));
+                    int start=expression.length()-input.length();
+                    tokenstream.add(new Token(tok,expression,start,start+lex.length()));
                     // split off the found token from the input and continue scanning
-                    expression=expression.substring(lex.length());
+                    input=input.substring(lex.length());
                     continue scanning;
                 }
             }
             throw new RuntimeException("nasty input found!");
         }
-        tokenstream.add(new Token(TokenType.EOF,""));
+        tokenstream.add(new Token(TokenType.EOF,expression,expression.length(),expression.length()));
         return tokenstream;
     }
 
@@ -215,8 +1011,9 @@ public abstract class Expr {
         LBRACK("\\("),
         RBRACK("\\)"),
         RANGE(":"),
-        REF("[A-Pa-p]1?\\d"),
+        REF("[A-Za-z]{1,3}[1-9]\\d*(?!\\w)"),
         INTCONST("\\d+"),
+        ERROR("#(DIV/0!|CYCLE!|NAME\\?|REF!|VALUE!)"),
         NAME("\\w+"),
         WHITESPACE("\\s"),
         CATCHALL(".*"),
@@ -233,11 +1030,22 @@ public abstract class Expr {
         }
     }
     /**
-     * represents a classified input substring
+     * represents a classified input substring source[start..end)
      * - is generated by the scanner
      * - is consumed by the parser
      */
-    public record Token(TokenType type,String input) {};
+    public record Token(TokenType type,String source,int start,int end) {
+        /**
+         * @return the lexeme of this token, extracted from the source on demand
+         */
+        public String input(){
+            return source.substring(start,end);
+        }
+        @Override
+        public String toString() {
+            return "Token[type="+type+", input="+input()+"]";
+        }
+    };
 
     /**
      * Recursive Descent Parser for the spreadlanguage
@@ -245,26 +1053,57 @@ public abstract class Expr {
      */
     public static class Parser {
         public class Fail extends Exception {
-            public Fail(String message){
-                super(message);
+            private int column;
+            private ErrorValue error=ErrorValue.NAME;
+            /**
+             * @param message
+             * @param at the offending token, whose position is appended to the message
+             */
+            public Fail(String message,Token at){
+                super(message+" at column "+(at.start()+1));
+                column=at.start()+1;
+            }
+            /**
+             * @param error the value of the formula when evaluated, #NAME? by default
+             */
+            public Fail(String message,Token at,ErrorValue error){
+                this(message,at);
+                this.error=error;
+            }
+            /**
+             * @return 1-based column of the input at which parsing failed
+             */
+            public int getColumn(){
+                return column;
+            }
+            /**
+             * @return the value of the formula that fails to parse
+             */
+            public ErrorValue error(){
+                return error;
             }
         }
         private List<Token> terminals;
+        /** index of the current head of the input within terminals */
+        private int pos;
         /**
-         * consumes (i.e. removes) whatever token is the current head of the input
+         * consumes (i.e. steps over) whatever token is the current head of the input; the final EOF is never stepped over
          * @return
          */
         public Token consume(){
-            return terminals.remove(0);
+            var t = terminals.get(pos);
+            if (pos<terminals.size()-1) pos++;
+            skipWhitespace();
+            return t;
         }
         /**
-         * consumes (i.e. removes) token from the rest of the input stream
+         * consumes (i.e. steps over) token from the rest of the input stream
          * @param t the expected token to be found at the head of the input
          * @return
          * @throws Fail
          */
         public Token consume(TokenType t) throws Fail {
-            if (peek()!=t) throw new Fail("expected "+t+" , but found "+consume());
+            if (peek()!=t) throw fail("expected "+t+" , but found ");
             return consume();
         }
         /**
@@ -272,14 +1111,26 @@ public abstract class Expr {
          * @return head of the remaining input
          */
         public TokenType peek(){
-            return terminals.get(0).type();
+            return terminals.get(pos).type();
+        }
+        /**
+         * @return Fail with message, completed by the current head of the input and its position
+         */
+        private Fail fail(String message) {
+            var t = terminals.get(pos);
+            return new Fail(message+t,t);
+        }
+        private void skipWhitespace(){
+            while (terminals.get(pos).type()==TokenType.WHITESPACE) pos++;
         }
         /**
-         * Handover of the Tokenlist to the parser engine
+         * Handover of the Tokenlist to the parser engine; the list must be terminated by EOF and is
+         * accessed by index, so it should provide fast random access
          * @param terminals
          */
         public Parser(List<Token> terminals){
             this.terminals=terminals;
+            skipWhitespace();
         }
         /**
          * Entry function into parsing expressions
@@ -292,7 +1143,7 @@ public abstract class Expr {
 // C -> name | name ( C , ... )
         private Expr c() throws Fail {
             var name=NAME();
-            List<Expr> params=new LinkedList<Expr>();
+            List<Expr> params=new ArrayList<Expr>();
             if (peek()!=TokenType.LBRACK) {
                 // just a variable reference
                 return new Var(name);
@@ -301,7 +1152,7 @@ public abstract class Expr {
             while (peek()!=TokenType.RBRACK) { 
                 params.add(e());
                 if (peek()!=TokenType.COMMA) {
-                    if (peek()!=TokenType.RBRACK) throw new Fail("expected , or ) but found "+consume());
+                    if (peek()!=TokenType.RBRACK) throw fail("expected , or ) but found ");
                 }
                 else consume(TokenType.COMMA);
             }
@@ -341,7 +1192,7 @@ public abstract class Expr {
             }
             return e;
         }
-// F  -> (E) | int | ref | C
+// F  -> (E) | int | error | ref | ref : ref | C
         /**
          * D&C handling of the parsing of a factor
          * @return
@@ -350,21 +1201,29 @@ public abstract class Expr {
         private Expr f() throws Fail{
             switch (peek()){
                 case INTCONST: return INTCONST();
-                case REF: return REF();
+                case ERROR: return new Const(ErrorValue.ofLabel(consume(TokenType.ERROR).input()).code);
+                case REF:
+                    var ref = REF();
+                    if (peek()!=TokenType.RANGE) return ref;
+                    consume(TokenType.RANGE);
+                    return new Range((Ref)ref,(Ref)REF());
                 case NAME: return c();
                 case LBRACK:
                     consume(TokenType.LBRACK);
                     var e = expr();
                     consume(TokenType.RBRACK);
                     return e;
-                default: throw new Fail("expected an INTCONST, REF  or ( but found "+consume());
+                default: throw fail("expected an INTCONST, REF  or ( but found ");
             }
         }
         private Expr INTCONST() throws Fail {
             return new Const(Integer.parseInt(consume(TokenType.INTCONST).input()));
         }
         private Expr REF() throws Fail {
-            return new Ref(consume(TokenType.REF).input());
+            var t = consume(TokenType.REF);
+            var ref = new Ref(t.input());
+            if (!ref.inBounds()) throw new Fail("reference out of range: "+t.input(),t,ErrorValue.REF);
+            return ref;
         }
         private String NAME() throws Fail {
             return consume(TokenType.NAME).input();
@@ -415,7 +1274,7 @@ public abstract class Expr {
                         }
                         break;
                     case NAME:   
-                        if (ctx.lookupFunction(t.input()) != null) 
+                        if (isFunction(t.input())) 
                             operators.push(t); 
                         else  
                             output.offer(t);
@@ -442,7 +1301,7 @@ public abstract class Expr {
                         break;
                     case NAME:
                         List<Expr> params = new LinkedList<>();
-                        if (ctx.lookupFunction(t.input())!=null) {
+                        if (isFunction(t.input())) {
                             var p = backlog.pop();
                             params.add(p);
                             backlog.push(new CallEx(t.input(), params));
@@ -458,6 +1317,9 @@ public abstract class Expr {
 
             return backlog.pop();
         }
+        private static boolean isFunction(String name){
+            return Aggregate.of(name)!=null || Functions.of(name)!=null;
+        }
     }
     public static void main(String[] args) {
         Context ctx = new Context(){};
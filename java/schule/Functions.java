@@ -0,0 +1,73 @@
+package schule;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The functions formulae may call besides the aggregates: the built-in ones, and those found by
+ * ServiceLoader on the class path when this class is first used, which take precedence over
+ * built-in functions of the same name. Aggregates take precedence over both.
+ */
+final class Functions {
+    private static final Map<String,SheetFunction> REGISTRY = new HashMap<>();
+    static {
+        for (var f:Builtin.values())
+            REGISTRY.put(f.name(),f);
+        for (var f:ServiceLoader.load(SheetFunction.class))
+            REGISTRY.put(f.name().toUpperCase(Locale.ROOT),f);
+    }
+    private Functions(){
+    }
+    /**
+     * @param name function name, in any case
+     * @return the function called name, or null if there is none
+     */
+    static SheetFunction of(String name){
+        return REGISTRY.get(name.toUpperCase(Locale.ROOT));
+    }
+
+    private enum Builtin implements SheetFunction {
+        /** ABS(x) */
+        ABS(1){
+            @Override
+            public int apply(int a){
+                return Math.abs(a);
+            }
+        },
+        /** MOD(x,y), with the sign of y; #DIV/0! if y is 0 */
+        MOD(2){
+            @Override
+            public int apply(int a, int b){
+                return b==0 ? ErrorValue.DIV0.code : Math.floorMod(a,b);
+            }
+        },
+        /** RANDBETWEEN(low,high), a random number from low to high; #VALUE! if high is below low */
+        RANDBETWEEN(2){
+            @Override
+            public boolean pure(){
+                return false;
+            }
+            @Override
+            public int apply(int a, int b){
+                return b<a ? ErrorValue.VALUE.code : (int)ThreadLocalRandom.current().nextLong(a,(long)b+1);
+            }
+        };
+
+        private final int arity;
+        Builtin(int arity){
+            this.arity=arity;
+        }
+        @Override
+        public int arity(){
+            return arity;
+        }
+        @Override
+        public int apply(int[] args){
+            if (args.length!=arity) return ErrorValue.VALUE.code;
+            return arity==1 ? apply(args[0]) : apply(args[0],args[1]);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package schule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe persistence of the edits of a session: every setFormula is appended to the journal
+ * file next to the sheet, so that saving costs in proportion to the edits, not to the sheet. After
+ * SNAPSHOT edits the sheet is written as a Workbook snapshot, which replaces the previous one
+ * atomically, and the journal starts over. After a crash, the sheet is recovered from the latest
+ * snapshot (or the sheet file itself if there is none yet) by replaying the journal on top of it.
+ * Appending only hands the record over to a writer thread, which writes everything appended in the
+ * meantime with one gathering write and forces it to disk once for the whole group. Every record
+ * carries a checksum, so a record torn by the crash ends the replay.
+ * <pre>
+ * per record: int length n of the rest, int CRC32 of the rest,
+ *             int row, int col, byte 1 and the formula encoded by Expr.writeTo, or byte 0 if emptied
+ * </pre>
+ */
+public class Journal implements Closeable {
+    /** number of edits after which a snapshot replaces the journal */
+    static final int SNAPSHOT = Math.max(1,Integer.getInteger("spreadsheet.journal.snapshot",10000));
+
+    private final Path journal,snapshot;
+    private FileChannel channel;
+    /** records handed to append and not yet taken by the writer */
+    private List<ByteBuffer> pending = new ArrayList<>();
+    /** numbers of the records appended, and of those forced to disk */
+    private long appended=0,committed=0;
+    private IOException failure;
+    private boolean closed=false;
+    private Thread writer;
+    /** edits since the last snapshot */
+    private int edits=0;
+
+    /**
+     * @param file the sheet, next to which the journal and the snapshot are kept
+     */
+    public Journal(Path file){
+        journal = Path.of(file+".journal");
+        snapshot = Path.of(file+".snapshot");
+    }
+    /**
+     * @return the latest snapshot, null if there is none
+     * @throws IOException
+     */
+    public Spreadsheet snapshot() throws IOException {
+        return Files.exists(snapshot) ? Workbook.read(snapshot) : null;
+    }
+    /**
+     * applies the edits in the journal to sheet, cutting off a record torn by a crash, and opens the
+     * journal for the edits to come
+     * @param sheet the snapshot, or the sheet as loaded from its file if there is no snapshot
+     * @return the number of edits replayed
+     * @throws IOException
+     */
+    public int replay(Spreadsheet sheet) throws IOException {
+        channel = FileChannel.open(journal,StandardOpenOption.CREATE,StandardOpenOption.READ,StandardOpenOption.WRITE);
+        if (channel.size()>Integer.MAX_VALUE) throw new IOException(journal+" is larger than 2 GiB");
+        var in = ByteBuffer.allocate((int)channel.size());
+        while (in.hasRemaining() && channel.read(in)>=0);
+        in.flip();
+        int count = 0, end = 0;
+        var crc = new CRC32();
+        // only the last edit of a cell counts, and the dependents of all are invalidated at once
+        var edits = new LinkedHashMap<Long,Optional<Expr>>();
+        while (in.remaining()>=8) {
+            int length = in.getInt(), checksum = in.getInt();
+            if (length<9 || length>in.remaining()) break;
+            var record = in.slice(in.position(),length);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int)crc.getValue()!=checksum) break;
+            int row = record.getInt(), col = record.getInt();
+            edits.put(DependencyGraph.key(row,col),record.get()==0 ? Optional.empty() : Optional.of(Expr.readFrom(record)));
+            in.position(end = in.position()+length);
+            count++;
+        }
+        sheet.setFormulas(edits);
+        // whatever follows the last complete record was being written when the session ended
+        channel.truncate(end);
+        channel.position(end);
+        this.edits = count;
+        writer = new Thread(this::write,"journal");
+        writer.setDaemon(true);
+        writer.start();
+        return count;
+    }
+    /**
+     * records that row/col has been set to formula, and takes a snapshot of sheet every SNAPSHOT
+     * edits; called by Spreadsheet.setFormula after the edit
+     * @throws UncheckedIOException if the journal cannot be written
+     */
+    void logged(Spreadsheet sheet, int row, int col, Optional<Expr> formula){
+        var bytes = new ByteArrayOutputStream(64);
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(row);
+            out.writeInt(col);
+            out.writeByte(formula.isPresent() ? 1 : 0);
+            if (formula.isPresent()) formula.get().writeTo(out);
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+        var record = ByteBuffer.wrap(bytes.toByteArray());
+        var crc = new CRC32();
+        crc.update(record.array(),8,record.capacity()-8);
+        record.putInt(0,record.capacity()-8).putInt(4,(int)crc.getValue());
+        append(record);
+        if (++edits>=SNAPSHOT) {
+            try {
+                compact(sheet);
+            }catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+    private synchronized void append(ByteBuffer record){
+        if (failure!=null) throw new UncheckedIOException(failure);
+        if (closed) throw new IllegalStateException("journal "+journal+" is closed");
+        pending.add(record);
+        appended++;
+        notifyAll();
+    }
+    /**
+     * the writer thread: writes and forces the pending records group by group
+     */
+    private void write(){
+        while (true) {
+            List<ByteBuffer> group;
+            long last;
+            synchronized (this) {
+                while (pending.isEmpty() && !closed)
+                    try {
+                        wait();
+                    }catch(InterruptedException e){
+                        return;
+                    }
+                if (pending.isEmpty()) return;
+                group = pending;
+                pending = new ArrayList<>();
+                last = appended;
+            }
+            try {
+                var buffers = group.toArray(new ByteBuffer[0]);
+                while (buffers[buffers.length-1].hasRemaining())
+                    channel.write(buffers);
+                channel.force(false);
+            }catch(IOException e){
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                committed = last;
+                notifyAll();
+            }
+        }
+    }
+    /**
+     * waits until all edits logged so far are on disk
+     * @throws IOException if the journal could not be written
+     */
+    public synchronized void sync() throws IOException {
+        long target = appended;
+        while (committed<target && failure==null)
+            try {
+                wait();
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for "+journal,e);
+            }
+        if (failure!=null) throw failure;
+    }
+    /**
+     * writes sheet as the new snapshot and empties the journal, whose edits the snapshot contains;
+     * a crash in between leaves the journal to be replayed on the new snapshot, which does no harm,
+     * as every record sets a cell to its content
+     */
+    private void compact(Spreadsheet sheet) throws IOException {
+        sync();
+        var temporary = Path.of(snapshot+".tmp");
+        Workbook.write(sheet,temporary);
+        try (var file = FileChannel.open(temporary,StandardOpenOption.WRITE)) {
+            file.force(true);
+        }
+        Files.move(temporary,snapshot,StandardCopyOption.ATOMIC_MOVE,StandardCopyOption.REPLACE_EXISTING);
+        synchronized (this) {
+            channel.truncate(0);
+            channel.position(0);
+        }
+        edits = 0;
+    }
+    /**
+     * writes the remaining edits and closes the journal
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            if (writer!=null) writer.join();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        if (channel!=null) channel.close();
+        if (failure!=null) throw failure;
+    }
+    /**
+     * closes the journal and removes it together with the snapshot, once the sheet has been saved
+     */
+    public void discard() throws IOException {
+        close();
+        Files.deleteIfExists(journal);
+        Files.deleteIfExists(snapshot);
+    }
+}
@@ -0,0 +1,233 @@
+package schule;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Instrumentation of parsing and evaluation: counters of evaluated cells and cache hits, the time
+ * spent parsing, recalculating and in each function, and the slowest cells. The same data is
+ * available through JMX as schule:type=Metrics, and is emitted as JFR events while a recording
+ * is running.
+ * Everything is off unless switched on with -Dspreadsheet.metrics=true or via JMX; while off, the
+ * instrumented code only reads the enabled flag.
+ */
+public class Metrics implements MetricsMXBean {
+    @Name("schule.CellEvaluation")
+    @Label("Cell Evaluation")
+    @Category("Spreadsheet")
+    static class CellEvaluation extends Event {
+        @Label("Cell")
+        String cell;
+    }
+    @Name("schule.Recalculation")
+    @Label("Recalculation")
+    @Category("Spreadsheet")
+    static class Recalculation extends Event {
+        @Label("Dirty Cells")
+        int cells;
+    }
+    @Name("schule.Parse")
+    @Label("Formula Parse")
+    @Category("Spreadsheet")
+    static class Parse extends Event {
+        @Label("Formula")
+        String formula;
+    }
+
+    /** read by all instrumented code, so it must stay a plain field access */
+    static volatile boolean enabled = Boolean.getBoolean("spreadsheet.metrics");
+    /** number of slowest cells kept */
+    static final int TOP = Math.max(1,Integer.getInteger("spreadsheet.metrics.top",10));
+    private static final Metrics INSTANCE = new Metrics();
+
+    private static final LongAdder cellsEvaluated = new LongAdder();
+    private static final LongAdder cacheHits = new LongAdder();
+    private static final LongAdder parses = new LongAdder();
+    private static final LongAdder parseNanos = new LongAdder();
+    private static final LongAdder recalculations = new LongAdder();
+    private static final LongAdder recalculationNanos = new LongAdder();
+    private record Calls(String name, LongAdder count, LongAdder nanos) {}
+    /** calls by the aggregate or SheetFunction called, see Expr.CallEx */
+    private static final Map<Object,Calls> functions = new ConcurrentHashMap<>();
+    /** cell keys and longest evaluation times of the slowest cells, unsorted */
+    private static final long[] slowCells = new long[TOP], slowNanos = new long[TOP];
+    private static int slowCount = 0;
+    /** shortest time among the slowest cells once there are TOP of them, 0 before; faster cells
+     * are not recorded, so they need not take the lock */
+    private static volatile long slowThreshold = 0;
+
+    private Metrics(){
+    }
+    /**
+     * makes the metrics available through the platform MBean server, once
+     */
+    public static synchronized void register(){
+        try {
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var name = new ObjectName("schule:type=Metrics");
+            if (!server.isRegistered(name)) server.registerMBean(INSTANCE,name);
+        }catch(JMException e){
+            throw new IllegalStateException(e);
+        }
+    }
+    /**
+     * a cached value was read instead of evaluating the cell
+     */
+    static void cacheHit(){
+        cacheHits.increment();
+    }
+    /**
+     * records the evaluation of cell, which took from start until now
+     * @param cell key of the cell
+     * @param start System.nanoTime() at the beginning
+     * @param event begun at the beginning
+     */
+    static void evaluated(long cell, long start, CellEvaluation event){
+        long nanos = System.nanoTime()-start;
+        cellsEvaluated.increment();
+        slow(cell,nanos);
+        if (event.shouldCommit()) {
+            event.cell = name(cell);
+            event.commit();
+        }
+    }
+    static void recalculated(int cells, long start, Recalculation event){
+        recalculations.increment();
+        recalculationNanos.add(System.nanoTime()-start);
+        if (event.shouldCommit()) {
+            event.cells = cells;
+            event.commit();
+        }
+    }
+    static void parsed(String formula, long start, Parse event){
+        parses.increment();
+        parseNanos.add(System.nanoTime()-start);
+        if (event.shouldCommit()) {
+            event.formula = formula;
+            event.commit();
+        }
+    }
+    /**
+     * records a call of function, which took from start until now
+     * @param function the aggregate or SheetFunction called, as resolved when parsing
+     * @param name its name as written in the formula
+     */
+    static void called(Object function, String name, long start){
+        var calls = functions.get(function);
+        if (calls==null) calls = functions.computeIfAbsent(function,f -> new Calls(name.toUpperCase(Locale.ROOT),new LongAdder(),new LongAdder()));
+        calls.count().increment();
+        calls.nanos().add(System.nanoTime()-start);
+    }
+    private static void slow(long cell, long nanos){
+        // a cell among the slowest took at least the threshold, so a faster evaluation changes nothing
+        if (nanos>slowThreshold) slowLocked(cell,nanos);
+    }
+    private static synchronized void slowLocked(long cell, long nanos){
+        int min = 0;
+        for (int i=0;i<slowCount;i++) {
+            if (slowCells[i]==cell) {
+                slowNanos[i] = Math.max(slowNanos[i],nanos);
+                return;
+            }
+            if (slowNanos[i]<slowNanos[min]) min=i;
+        }
+        if (slowCount<TOP) min = slowCount++;
+        else if (slowNanos[min]>=nanos) return;
+        slowCells[min]=cell;
+        slowNanos[min]=nanos;
+        if (slowCount==TOP) slowThreshold = Arrays.stream(slowNanos).min().getAsLong();
+    }
+    private static String name(long cell){
+        return Expr.Ref.columnName(DependencyGraph.col(cell))+(DependencyGraph.row(cell)+1);
+    }
+    public static Metrics get(){
+        return INSTANCE;
+    }
+    @Override
+    public boolean isEnabled(){
+        return enabled;
+    }
+    @Override
+    public void setEnabled(boolean on){
+        enabled = on;
+    }
+    @Override
+    public long getCellsEvaluated(){
+        return cellsEvaluated.sum();
+    }
+    @Override
+    public long getCacheHits(){
+        return cacheHits.sum();
+    }
+    @Override
+    public long getParses(){
+        return parses.sum();
+    }
+    @Override
+    public double getParseMillis(){
+        return parseNanos.sum()/1e6;
+    }
+    @Override
+    public long getRecalculations(){
+        return recalculations.sum();
+    }
+    @Override
+    public double getRecalculationMillis(){
+        return recalculationNanos.sum()/1e6;
+    }
+    @Override
+    public Map<String,Long> getFunctionCalls(){
+        return functions.values().stream()
+            .collect(Collectors.toMap(Calls::name,c -> c.count().sum(),Long::sum,TreeMap::new));
+    }
+    @Override
+    public Map<String,Double> getFunctionMillis(){
+        return functions.values().stream()
+            .collect(Collectors.toMap(Calls::name,c -> c.nanos().sum()/1e6,Double::sum,TreeMap::new));
+    }
+    @Override
+    public String[] getSlowestCells(){
+        synchronized (Metrics.class) {
+            return IntStream.range(0,slowCount).boxed()
+                .sorted(Comparator.comparingLong(i -> -slowNanos[i]))
+                .map(i -> String.format("%s %.3f ms",name(slowCells[i]),slowNanos[i]/1e6))
+                .toArray(String[]::new);
+        }
+    }
+    @Override
+    public void reset(){
+        for (var counter:new LongAdder[]{cellsEvaluated,cacheHits,parses,parseNanos,recalculations,recalculationNanos})
+            counter.reset();
+        functions.clear();
+        synchronized (Metrics.class) {
+            slowCount = 0;
+            slowThreshold = 0;
+        }
+    }
+    /**
+     * @return all metrics in a few lines of text
+     */
+    public String report(){
+        return String.format("%,d cells evaluated, %,d cache hits, %,d recalculations in %.3f ms, %,d formulae parsed in %.3f ms%n",
+                getCellsEvaluated(),getCacheHits(),getRecalculations(),getRecalculationMillis(),getParses(),getParseMillis())
+            + "function calls: "+getFunctionCalls()+"\n"
+            + "function time (ms): "+getFunctionMillis()+"\n"
+            + "slowest cells: "+Arrays.toString(getSlowestCells());
+    }
+}
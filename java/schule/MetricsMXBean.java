@@ -0,0 +1,22 @@
+package schule;
+
+import java.util.Map;
+
+/**
+ * management interface of Metrics, registered as schule:type=Metrics
+ */
+public interface MetricsMXBean {
+    boolean isEnabled();
+    void setEnabled(boolean enabled);
+    long getCellsEvaluated();
+    long getCacheHits();
+    long getParses();
+    double getParseMillis();
+    long getRecalculations();
+    double getRecalculationMillis();
+    Map<String,Long> getFunctionCalls();
+    Map<String,Double> getFunctionMillis();
+    /** @return the slowest cells with their longest evaluation time, e.g. B7 12.345 ms */
+    String[] getSlowestCells();
+    void reset();
+}
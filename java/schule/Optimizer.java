@@ -0,0 +1,146 @@
+package schule;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Optimization of the formulae of a sheet as they are stored: operations and pure calls on
+ * constants are folded into a Const, references to cells are made relative to the cell of the formula, and identical
+ * subexpressions of all formulae are hash-consed into a single node. So a formula copied down a
+ * column, like A1*B1, A2*B2, ..., is stored as one tree R[0]C[-2]*R[0]C[-1] for all of its cells,
+ * and the sheet supplies the cell when evaluating it (see Expr.Context.originRow). Ranges and the
+ * arguments of aggregates stay absolute, as the same aggregate, like SUM(A1:A9) or MAX(A1,B1), is
+ * often read by many cells: a node shared by several formulae
+ * or within one caches its value during a recalculation (see Expr.Composite), so that e.g. the SUM
+ * in SUM(A1:A9)*2 and SUM(A1:A9)+1 is computed once.
+ * A formula whose tree has been folded is stored as Expr.Optimized, which keeps the tree as entered
+ * for replicateTo; otherwise Expr.at turns the stored tree back into the formula as entered.
+ * Calls of functions that are not pure (see SheetFunction.pure) may have side effects or differ
+ * from call to call, so they are neither folded, shared nor cached.
+ */
+class Optimizer {
+    /** operands of interned nodes: the values of leaves, and the interned nodes themselves */
+    private record BinKey(Expr.Op op, Object l, Object r) {}
+    private record CallKey(String name, List<Object> params) {}
+    private record RefKey(int col, int row, boolean relative) {
+        // unlike the hash of the record, distinct for all offsets of a column and row
+        @Override
+        public int hashCode(){
+            return (row*(2*Expr.Ref.MAX_COLS+1)+col)*2+(relative ? 1 : 0);
+        }
+    }
+    private record RangeKey(int fromCol, int fromRow, int toCol, int toRow) {}
+    private record VarKey(String name) {}
+
+    /** the interned nodes by their keys; an entry lives as long as its node refers to its key */
+    private final Map<Object,WeakReference<Expr.Composite>> table = new WeakHashMap<>();
+    /** whether constants have been folded in the formula being optimized */
+    private boolean folded;
+    /** cell of the formula being optimized */
+    private int row,col;
+    /** relative nodes of the formula being optimized, whose values may be cached only within the formula */
+    private final Set<Expr.Composite> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * @param formula as parsed, or null
+     * @param row
+     * @param col cell of the formula
+     * @return formula with constants folded and subexpressions shared with other formulae, whose
+     * references are relative to the cell
+     */
+    synchronized Expr optimize(Expr formula, int row, int col){
+        if (formula==null || formula instanceof Expr.Deferred || formula instanceof Expr.Optimized) return formula;
+        folded = false;
+        this.row = row;
+        this.col = col;
+        var optimized = intern(formula,false);
+        seen.clear();
+        return folded ? new Expr.Optimized(formula,optimized) : optimized;
+    }
+    /**
+     * @param absolute whether references are kept absolute, within the arguments of an aggregate
+     */
+    private Expr intern(Expr e, boolean absolute){
+        if (e instanceof Expr.Ref r && !r.relative && !absolute) return new Expr.Ref(r.col-col,r.row-row,true);
+        if (e instanceof Expr.BinEx b) {
+            var l = intern(b.l,absolute);
+            var r = intern(b.r,absolute);
+            if (l instanceof Expr.Const cl && r instanceof Expr.Const cr) {
+                folded = true;
+                return new Expr.Const(b.op.apply(cl.value,cr.value));
+            }
+            var node = l==b.l && r==b.r ? b : new Expr.BinEx(l,b.op,r);
+            return canonical(new BinKey(b.op,operand(l),operand(r)),node,relative(l) || relative(r));
+        }
+        if (e instanceof Expr.CallEx c && c.pure()) {
+            var params = new ArrayList<Expr>();
+            var operands = new ArrayList<Object>();
+            boolean same = true, relative = false, constant = true;
+            for (var p:c.params) {
+                var q = intern(p,absolute || c.aggregate!=null);
+                params.add(q);
+                operands.add(operand(q));
+                same &= q==p;
+                relative |= relative(q);
+                constant &= q instanceof Expr.Const;
+            }
+            var node = same ? c : new Expr.CallEx(c,params);
+            if (constant) {
+                folded = true;
+                return new Expr.Const(fold(node));
+            }
+            // the name is kept as written, so that sharing does not change the formula
+            return canonical(new CallKey(c.name,operands),node,relative);
+        }
+        return e;
+    }
+    /**
+     * @return the node interned under key, or node after interning it
+     */
+    private Expr.Composite canonical(Object key, Expr.Composite node, boolean relative){
+        var ref = table.get(key);
+        var existing = ref==null ? null : ref.get();
+        if (existing==null) {
+            node.internKey = key;
+            node.relative = relative;
+            table.put(key,new WeakReference<>(node));
+            if (relative) seen.add(node);
+            return node;
+        }
+        // the value of a relative node differs from cell to cell, so only a repetition within the
+        // formula can reuse it; and caching pays off for calls and nested operations, but not for
+        // single operations on cells
+        boolean repeated = existing.relative ? !seen.add(existing) : existing!=node;
+        if (repeated && (existing instanceof Expr.CallEx
+                || existing instanceof Expr.BinEx b && (b.l instanceof Expr.Composite || b.r instanceof Expr.Composite)))
+            existing.memo = true;
+        return existing;
+    }
+    /**
+     * @return value of the call of constants, which reads no cells
+     */
+    private static int fold(Expr.CallEx call){
+        try {
+            return call.eval(new Expr.Context(){});
+        }catch(Exception e){
+            return ErrorValue.VALUE.code;
+        }
+    }
+    private static boolean relative(Expr e){
+        return e instanceof Expr.Ref r ? r.relative : e instanceof Expr.Composite c && c.relative;
+    }
+    private static Object operand(Expr e){
+        if (e instanceof Expr.Const c) return c.value;
+        if (e instanceof Expr.Ref r) return new RefKey(r.col,r.row,r.relative);
+        if (e instanceof Expr.Range r) return new RangeKey(r.from.col,r.from.row,r.to.col,r.to.row);
+        if (e instanceof Expr.Var v) return new VarKey(v.name);
+        // interned nodes stand for themselves, other calls are never equal to anything else
+        return e;
+    }
+}
@@ -0,0 +1,50 @@
+package schule;
+
+/**
+ * A function that formulae call by name, e.g. MOD(A1,7). Besides the built-in ones (see Functions),
+ * functions are plugged in as services: a jar on the class path that lists its implementations in
+ * META-INF/services/schule.SheetFunction. The function of a call is looked up once, when the
+ * formula is parsed, and called with plain ints: through apply(int) and apply(int,int) if it takes
+ * one or two arguments, otherwise through apply(int[]).
+ * A call evaluates to the first error among its arguments without calling the function, to #NAME?
+ * if there is no function of that name, and to #VALUE! if the number of arguments does not match
+ * the arity or the function throws.
+ */
+public interface SheetFunction {
+    /** arity of a function taking any number of arguments, to which ranges are passed cell by cell */
+    int VARIADIC = -1;
+
+    /**
+     * @return the name formulae call this function by, in any case
+     */
+    String name();
+    /**
+     * @return number of arguments, or VARIADIC; other functions take no ranges
+     */
+    default int arity(){
+        return VARIADIC;
+    }
+    /**
+     * @return whether the result depends on nothing but the arguments and a call has no side
+     * effects, so that calls with constant arguments are folded and equal calls are evaluated once
+     * per recalculation; a function that is not pure, e.g. a random number, is called every time
+     * its cell is evaluated, and is volatile: every recalculation evaluates the cells calling it
+     * again, together with their dependents, even if none of their precedents has changed
+     */
+    default boolean pure(){
+        return true;
+    }
+    default int apply(int a){
+        return apply(new int[]{a});
+    }
+    default int apply(int a, int b){
+        return apply(new int[]{a,b});
+    }
+    /**
+     * @param args the arguments, none of them an error; for a VARIADIC function a range is replaced
+     * by the values of its populated cells, column by column
+     * @return the result, which may be an ErrorValue code; ordinary results must not be smaller
+     * than ErrorValue.MIN_VALUE, which ErrorValue.saturate of a result computed in long ensures
+     */
+    int apply(int[] args);
+}
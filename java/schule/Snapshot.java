@@ -0,0 +1,53 @@
+package schule;
+
+/**
+ * The values of all cells of a sheet as of one complete recalculation, see Spreadsheet.snapshot.
+ * A snapshot never changes, so any number of threads may read it without locking, while the sheet
+ * is edited and recalculated further: it holds the blocks of the CellStore as they were when it was
+ * taken, and the store copies a block before modifying it. Successive snapshots share the blocks
+ * and the nodes of their BlockMap that did not change in between.
+ */
+public final class Snapshot {
+    private final long version;
+    private final BlockMap blocks;
+    private final int rows,cols;
+
+    Snapshot(long version, BlockMap blocks, int rows, int cols){
+        this.version=version;
+        this.blocks=blocks;
+        this.rows=rows;
+        this.cols=cols;
+    }
+    /**
+     * @return number of the recalculation, counting from 1; 0 before the first
+     */
+    public long version(){
+        return version;
+    }
+    /**
+     * @return whether cell row/col holds neither a formula nor a plain value
+     */
+    public boolean isEmpty(int row, int col){
+        var b = blocks.get(CellStore.blockKey(row,col));
+        return b==null || b.state[CellStore.index(row,col)]==CellStore.EMPTY;
+    }
+    /**
+     * @return value of cell row/col, which may be an ErrorValue code; 0 if it is empty
+     */
+    public int getValue(int row, int col){
+        var b = blocks.get(CellStore.blockKey(row,col));
+        return b==null ? 0 : b.values[CellStore.index(row,col)];
+    }
+    /**
+     * @return number of rows up to the last one that was ever populated
+     */
+    public int rows(){
+        return rows;
+    }
+    /**
+     * @return number of columns up to the last one that was ever populated
+     */
+    public int cols(){
+        return cols;
+    }
+}
@@ -1,33 +1,31 @@
 package schule;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Scanner;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
-import com.googlecode.lanterna.TerminalPosition;
-import com.googlecode.lanterna.TerminalSize;
-import com.googlecode.lanterna.TextColor;
 import com.googlecode.lanterna.graphics.TextGraphics;
 import com.googlecode.lanterna.gui2.MultiWindowTextGUI;
 import com.googlecode.lanterna.gui2.WindowBasedTextGUI;
 import com.googlecode.lanterna.gui2.dialogs.TextInputDialog;
-import com.googlecode.lanterna.input.KeyStroke;
 import com.googlecode.lanterna.input.KeyType;
 import com.googlecode.lanterna.screen.Screen;
 import com.googlecode.lanterna.screen.TerminalScreen;
@@ -35,155 +33,725 @@ import com.googlecode.lanterna.terminal.DefaultTerminalFactory;
 
 public class Spreadsheet implements Expr.Context {
     public static final int DIGITS=3;
-    public static final int ROWS=16;
-    public static final int COLS=ROWS;
-    private Optional<Expr>[][] formulae = new Optional[ROWS][COLS];
-    public Optional<Integer>[][] values = new Optional[ROWS][COLS];
+    /** time between two repaints of the console during a recalculation */
+    private static final int FRAME_MILLIS=16;
+    private CellStore cells = new CellStore();
     /**
-     * Gives the optionally empty raw Formula for [row/col] back, e.g. A1*5+B3
+     * Gives the optionally empty raw Formula for [row/col] back, e.g. A1*5+B3; a plain value is
+     * handed out as a constant formula
      * @param row
      * @param col
      * @return
      */
     public Optional<Expr> getFormula(int row, int col){
-        return formulae[row][col];
+        var formula = cells.getFormula(row,col);
+        if (formula==null && cells.getState(row,col)!=CellStore.EMPTY)
+            return Optional.of(new Expr.Const(cells.getValue(row,col)));
+        // the cell store holds the formula with references relative to the cell
+        return Optional.ofNullable(formula).map(f -> f.at(row,col));
     }
+    /**
+     * Replaces the formula for [row/col], rewires its precedents in the dependency graph and
+     * invalidates the cached values of the cell and all of its transitive dependents
+     * @param row
+     * @param col
+     * @param form
+     */
     public void setFormula(int row,int col,Optional<Expr> form) { 
-        formulae[row][col]=form; 
+        var cell = replace(row,col,form);
+        var affected = new HashSet<Long>();
+        graph().collectDependents(cell,affected);
+        invalidate(affected);
+        if (journal!=null) journal.logged(this,row,col,form);
     }
-    private int cursorcol=0,cursorrow=0;
-    private Map<String,Function<List<Integer>,Integer>> funcRegistry = new HashMap<>();
-    public Function<List<Integer>,Integer> lookupFunction(String name){
-        return funcRegistry.get(name.toUpperCase());
+    /**
+     * Replaces the formulae of several cells like setFormula, but collects the dependents of all of
+     * them in one pass, so that dependents shared by the cells are visited once
+     * @param edits new formula by key of the cell, see DependencyGraph.key
+     */
+    public void setFormulas(Map<Long,Optional<Expr>> edits){
+        for (var edit:edits.entrySet())
+            replace(DependencyGraph.row(edit.getKey()),DependencyGraph.col(edit.getKey()),edit.getValue());
+        var affected = new HashSet<Long>();
+        for (var cell:edits.keySet())
+            graph().collectDependents(cell,affected);
+        invalidate(affected);
+        // only now, as the journal may take a snapshot of the sheet
+        if (journal!=null)
+            for (var edit:edits.entrySet())
+                journal.logged(this,DependencyGraph.row(edit.getKey()),DependencyGraph.col(edit.getKey()),edit.getValue());
+    }
+    /**
+     * invalidates the cached values of the cells affected, which the next recalculation recomputes
+     */
+    private void invalidate(Set<Long> affected){
+        for (var k:affected)
+            cells.invalidate(DependencyGraph.row(k),DependencyGraph.col(k));
+        dirty.addAll(affected);
+        forgetCycles(affected);
+    }
+    /**
+     * stores the formula (or value) of a cell and wires its precedents
+     * @return the key of the cell
+     */
+    private long replace(int row, int col, Optional<Expr> form){
+        var formula = form.orElse(null);
+        if (formula instanceof Expr.Const c)
+            cells.setConstant(row,col,c.value);
+        else
+            cells.setFormula(row,col,optimizer.optimize(formula,row,col));
+        var cell = DependencyGraph.key(row,col);
+        wire(cell,formula);
+        return cell;
+    }
+    /** receives every setFormula, null if the edits are not journaled */
+    private Journal journal;
+    /**
+     * has every further setFormula appended to journal
+     * @param journal may be null
+     */
+    public void setJournal(Journal journal){
+        this.journal=journal;
+    }
+    /**
+     * registers the cells and ranges read by formula (if any) as the precedents of cell, and whether
+     * it is volatile
+     */
+    private void wire(long cell, Expr formula){
+        if (formula==null) graph().setPrecedents(cell,Set.of(),new long[0]);
+        else graph().setPrecedents(cell,DependencyGraph.references(formula),DependencyGraph.ranges(formula));
+        if (formula!=null && formula.isVolatile()) volatiles.add(cell);
+        else volatiles.remove(cell);
+    }
+    /** cells whose formula calls a function that is not pure, which every recalculation recomputes */
+    private final Set<Long> volatiles = ConcurrentHashMap.newKeySet();
+    /**
+     * invalidates the volatile cells and their dependents, as their values may have changed without
+     * any edit
+     */
+    private void invalidateVolatiles(){
+        if (volatiles.isEmpty()) return;
+        var affected = new HashSet<Long>();
+        for (var cell:volatiles)
+            graph().collectDependents(cell,affected);
+        invalidate(affected);
     }
+    /**
+     * records that a cell of a sheet being loaded has not been evaluated before it was saved, so
+     * that the next recalculation evaluates it
+     */
+    void loadDirty(int row, int col){
+        dirty.add(DependencyGraph.key(row,col));
+    }
+    /**
+     * stores the plain value of a cell while loading a sheet; the cell must be empty before
+     */
+    void loadValue(int row, int col, int value){
+        cells.setConstant(row,col,value);
+    }
+    /**
+     * stores the text of a formula while loading a sheet, without parsing it: the formula is only
+     * parsed and wired into the dependency graph when the cell is evaluated or recalculated first;
+     * the cell must be empty before
+     * @param row
+     * @param col
+     * @param source formula without the leading =
+     */
+    void loadFormula(int row, int col, String source){
+        loadFormula(row,col,new Expr.Deferred(source));
+    }
+    /**
+     * stores the formula of a cell while loading a sheet, wiring it unless it is still Deferred;
+     * the cell must be empty before
+     */
+    void loadFormula(int row, int col, Expr formula){
+        var cell = DependencyGraph.key(row,col);
+        cells.setFormula(row,col,optimizer.optimize(formula,row,col));
+        if (!(formula instanceof Expr.Deferred)) wire(cell,formula);
+        dirty.add(cell);
+    }
+    /**
+     * replaces a formula that has been loaded as text by its expression tree, wiring its precedents;
+     * the cell is DIRTY anyway, and so are its dependents, which cannot have been evaluated yet
+     * @throws Expr.Parser.Fail if the formula does not parse, leaving the cell as it is
+     */
+    private void resolve(int row, int col) throws Expr.Parser.Fail {
+        if (!(cells.getFormula(row,col) instanceof Expr.Deferred d)) return;
+        var formula = d.parse();
+        cells.setFormula(row,col,optimizer.optimize(formula,row,col));
+        wire(DependencyGraph.key(row,col),formula);
+    }
+    private DependencyGraph graph = new DependencyGraph();
+    private final Optimizer optimizer = new Optimizer();
+    /**
+     * @return formula of the cell at row and col as the sheet stores it, with its constants folded,
+     * its references relative to the cell and its subexpressions shared with the other formulae
+     */
+    Expr optimize(Expr formula, int row, int col){
+        return optimizer.optimize(formula,row,col);
+    }
+    /** fills in the graph of a loaded workbook once it is needed first, null afterwards */
+    private Consumer<DependencyGraph> graphLoader;
+    /**
+     * @return the dependency graph, loading it first if this sheet has been read from a workbook;
+     * that happens on the first edit or recalculation at the latest, before any concurrent evaluation
+     */
+    DependencyGraph graph(){
+        if (graphLoader!=null) {
+            var loader = graphLoader;
+            graphLoader = null;
+            loader.accept(graph);
+        }
+        return graph;
+    }
+    /**
+     * defers building the dependency graph of a sheet being loaded until the graph is needed
+     * @param loader
+     */
+    void loadGraph(Consumer<DependencyGraph> loader){
+        graphLoader=loader;
+    }
+    CellStore cells(){
+        return cells;
+    }
+    private boolean compiled = Boolean.parseBoolean(System.getProperty("spreadsheet.compiled","true"));
+    /**
+     * chooses between evaluating formulae via their compiled closures (default) or by interpreting
+     * their expression trees; the default can be set with -Dspreadsheet.compiled=false
+     * @param compiled
+     */
+    public void setCompiled(boolean compiled){
+        this.compiled=compiled;
+    }
+    private ForkJoinPool pool;
+    /**
+     * sets the number of threads used by recalculate(); with a parallelism above 1, the cells of each
+     * level of the dependency graph are evaluated concurrently on a fork/join pool
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism){
+        if (pool!=null) pool.shutdown();
+        pool = parallelism>1 ? new ForkJoinPool(parallelism) : null;
+    }
+    private Set<Long> dirty = new HashSet<>();
+    private boolean settle = Boolean.parseBoolean(System.getProperty("spreadsheet.settle","true"));
+    /**
+     * chooses whether edit() recalculates all cells it left dirty (default), after the cells on
+     * screen, or evaluates only the cells on screen and their precedents, leaving the other dirty
+     * cells to be evaluated when they are shown or eval() is called on them; the default can be set
+     * with -Dspreadsheet.settle=false
+     * @param settle
+     */
+    public void setSettle(boolean settle){
+        this.settle=settle;
+    }
+    /** cells on screen, which edit() evaluates first; null as long as nothing is shown */
+    private record Viewport(int top, int left, int rows, int cols){}
+    private volatile Viewport viewport;
+    /** applies the edits handed to edit(), and recalculates after each */
+    private ExecutorService background;
+    /** number of edits handed to edit(), and of the last one applied and recalculated or superseded */
+    private final AtomicLong edits = new AtomicLong();
+    private volatile long settled=0;
+    /** numbers the recalculations of all sheets, see Expr.Context.epoch */
+    private static final AtomicLong EPOCHS = new AtomicLong();
+    private volatile long epoch=0;
+    /** the sheet as of the last complete recalculation, and the number of these */
+    private volatile Snapshot snapshot = new Snapshot(0,BlockMap.EMPTY,0,0);
+    private long versions=0;
+    private int cursorcol=0,cursorrow=0;
+    private ConsoleView view;
     public Spreadsheet(){
-        for (int i=0;i<ROWS;i++) 
-            for (int j=0;j<COLS;j++)
-                setFormula(i, j, Optional.empty());
-        funcRegistry.put("MAX",x -> Math.max(x.get(0),x.get(1)));
     }
     /**
-     * To start evaluation anew, we need to purge all old cached values from values[][]
+     * Recomputes all cells invalidated by setFormula since the last recalculation, and the cells
+     * calling a function that is not pure together with their dependents, in topological order, so
+     * that every cell finds the values of its precedents already cached
      */
-    private void purgeValues(){
-        values = new Optional[ROWS][COLS];
+    public void recalculate(){
+        recalculate(() -> false);
     }
     /**
-     *  print out the frame for a Cell
+     * Recomputes the cells invalidated since the last recalculation like recalculate(), but stops
+     * between two cells as soon as cancelled returns true; the cells not recomputed by then stay
+     * dirty for the next recalculation
+     * @param cancelled
+     * @return whether all invalidated cells have been recomputed
      */
-    private static void drawCellToConsole(TextGraphics textGraphics, int row ,int col , String txt) {
-        col++;
-        int x0 = col * (3+DIGITS);
-        int y0 = row * 2;
-        int x1 = x0 + (3+DIGITS);
-        int y1 = y0 + 2;
-        textGraphics.drawRectangle(new TerminalPosition(x0, y0), new TerminalSize(4+DIGITS, 3), (char)0x2500); //-
-        textGraphics.drawLine(x0,y0,x0,y1,(char)0x2502); // |
-        textGraphics.drawLine(x1,y0,x1,y1,(char)0x2502); // |
-        textGraphics.setCharacter(x0,y0,(char)0x253C);   // +
-        textGraphics.setCharacter(x0,y1,(char)0x253C);   // +
-        textGraphics.setCharacter(x1,y0,(char)0x253C);   // +
-        textGraphics.setCharacter(x1,y1,(char)0x253C);   // +
-        textGraphics.putString(x0+1,y0+1," "+txt+" ");
+    public boolean recalculate(BooleanSupplier cancelled){
+        // every cell is evaluated at most once, after its precedents, so shared subexpressions
+        // keep their values until the end of the recalculation
+        epoch = EPOCHS.incrementAndGet();
+        invalidateVolatiles();
+        try {
+            boolean done;
+            if (!Metrics.enabled) done = recalculateDirty(cancelled);
+            else {
+                var event = new Metrics.Recalculation();
+                event.begin();
+                long start = System.nanoTime();
+                int count = dirty.size();
+                done = recalculateDirty(cancelled);
+                Metrics.recalculated(count,start,event);
+            }
+            // readers only ever see the outcome of a complete recalculation
+            if (done) snapshot = cells.snapshot(++versions);
+            return done;
+        }finally{
+            epoch = 0;
+        }
     }
-
     /**
-     *  print out the actual content of the cell, and delegate to drawCellToConsole for the frame 
+     * @return the values of all cells as of the last complete recalculation, which any number of
+     * threads may read without locking while this sheet is edited and recalculated further; empty
+     * before the first recalculation
      */
-    private void drawDataCellToConsole(TextGraphics textgraphics, int row,int col){
-        var str = "   ";
-        if (!getFormula(row,col).isEmpty())  {
+    public Snapshot snapshot(){
+        return snapshot;
+    }
+    @Override
+    public long epoch(){
+        return epoch;
+    }
+    private boolean recalculateDirty(BooleanSupplier cancelled){
+        // the order depends on the precedents of all dirty cells, so formulae loaded as text are parsed now
+        for (var k:dirty) {
+            if (cancelled.getAsBoolean()) return false;
             try {
-                str=String.format("%"+DIGITS+"d",eval(row,col));
-            }catch(Exception e){
-                str="### "+e.getMessage();
+                resolve(DependencyGraph.row(k),DependencyGraph.col(k));
+            }catch(Expr.Parser.Fail f){
+                // the cell keeps its text, which evaluates to the error
+            }
+        }
+        if (pool==null) {
+            for (var k:graph().topologicalOrder(dirty)) {
+                if (cancelled.getAsBoolean()) return stop();
+                evalQuietly(k);
+            }
+        }
+        else {
+            // cells of a level only read cells of earlier levels, so they may be evaluated concurrently
+            var cyclic = new ArrayList<Long>();
+            for (var level:graph().levels(dirty,cyclic)) {
+                if (cancelled.getAsBoolean()) return stop();
+                pool.invoke(new LevelTask(level,0,level.size(),cancelled));
+            }
+            for (var k:cyclic) {
+                if (cancelled.getAsBoolean()) return stop();
+                evalQuietly(k);
             }
         }
-        drawCellToConsole(textgraphics, row+1,col, str);
-    }
-    /**
-     *  prints the whole array of cells to the console, and evens out some borderframes
-     */
-    public String printToConsole(Screen screen, TextGraphics textGraphics) throws IOException, InterruptedException {
-        screen.clear();
-        IntStream.range(0,COLS).forEachOrdered(cols ->
-            drawCellToConsole(textGraphics, 0, cols, " "+(char)(cols+'A'))
-            );
-        for (int cols = 0; cols < COLS;cols++)
-            for (int rows=0; rows< ROWS; rows++)
-                drawDataCellToConsole(textGraphics, rows,cols);
-        for (int j=0; j< COLS+1; j++) { // Finalize Border lines
-            textGraphics.setCharacter(6,j*2,(char)0x251C);              // ├
-            textGraphics.setCharacter(6*(COLS+1),j*2,(char)0x2524);     // ┤
-            textGraphics.setCharacter(6*(j+1),0,(char)0x252C);          // ┬
-            textGraphics.setCharacter(6*(j+1),(ROWS+1)*2,(char)0x2534); // ┴
-            textGraphics.putString(0,1+(j)*2," "+j);
+        // replaced rather than cleared, which would keep the capacity of a large load for good, and
+        // make every later recalculation iterate over all of its empty buckets
+        dirty = new HashSet<>();
+        return true;
+    }
+    /**
+     * @return the cells invalidated since the last recalculation, which the next one recomputes;
+     * a view that is only valid until then
+     */
+    Set<Long> dirty(){
+        return Collections.unmodifiableSet(dirty);
+    }
+    /**
+     * forgets the dirty cells recomputed by a cancelled recalculation
+     * @return false
+     */
+    private boolean stop(){
+        dirty.removeIf(k -> cells.getState(DependencyGraph.row(k),DependencyGraph.col(k))!=CellStore.DIRTY);
+        return false;
+    }
+    /**
+     * Applies edit to this sheet on a background thread and evaluates the dirty cells on screen
+     * afterwards, together with their precedents, so that the caller is not held up by the
+     * evaluation; then, unless settle is switched off, it recalculates the remaining dirty cells.
+     * A recalculation still running is cancelled, as the one after edit also covers the cells it
+     * left dirty. As long as recalculating() returns true, the caller must neither modify nor
+     * evaluate the sheet, only read the cached values of its cells, or the snapshot() of the last
+     * recalculation, which without settle is only taken by an explicit recalculate().
+     * @param edit
+     */
+    public void edit(Consumer<Spreadsheet> edit){
+        long generation = edits.incrementAndGet();
+        if (background==null) background = Executors.newSingleThreadExecutor(r -> {
+            var t = new Thread(r,"recalculation");
+            t.setDaemon(true);
+            return t;
+        });
+        background.execute(() -> {
+            try {
+                edit.accept(this);
+                BooleanSupplier cancelled = () -> edits.get()!=generation;
+                evaluateViewport(cancelled);
+                if (settle) recalculate(cancelled);
+            }finally{
+                settled = generation;
+            }
+        });
+    }
+    /**
+     * evaluates the dirty cells on screen, row by row, and the dirty cells they depend on
+     * @param cancelled stops the evaluation between two cells when it returns true
+     */
+    private void evaluateViewport(BooleanSupplier cancelled){
+        var v = viewport;
+        if (v==null) return;
+        // like a recalculation, no cell changes but from dirty to valid meanwhile
+        epoch = EPOCHS.incrementAndGet();
+        try {
+            for (int row=v.top;row<v.top+v.rows;row++)
+                for (int col=v.left;col<v.left+v.cols;col++) {
+                    if (cancelled.getAsBoolean()) return;
+                    if (cells.getState(row,col)==CellStore.DIRTY) evalQuietly(DependencyGraph.key(row,col));
+                }
+        }finally{
+            epoch = 0;
         }
-        // red frame around the active cell:
-        textGraphics.setForegroundColor(TextColor.ANSI.RED);
-        drawDataCellToConsole(textGraphics,cursorrow,cursorcol);
-        textGraphics.setForegroundColor(TextColor.ANSI.DEFAULT);
-        // little prompt at the bottom line:
-        var cell = "Current Cell "+((char)(cursorcol+'A'))+(cursorrow+1)+": ";
-        var raw = getFormula(cursorrow,cursorcol);
-        var bo = new ByteArrayOutputStream();
-        raw.ifPresent(x -> x.replicateTo(new PrintStream(bo)));
-        cell+="="+bo.toString();
-        textGraphics.putString(1,2*(ROWS+2),cell);
-        // cursor to indicate readyness for new input
-        screen.setCursorPosition(new TerminalPosition(1+cell.length(), 2*(ROWS+2)));
-        return bo.toString();
+    }
+    /**
+     * records the cells on screen after the view moved, and has them evaluated in the background
+     * if some of them may still be dirty: without settle, or while the cells dirty before are being
+     * recalculated, which resumes after them
+     */
+    void show(int top, int left, int rows, int cols){
+        viewport = new Viewport(top,left,rows,cols);
+        if (!settle || recalculating()) edit(s -> {});
+    }
+    /**
+     * @return whether edits handed to edit() are still being applied or recalculated
+     */
+    public boolean recalculating(){
+        return settled!=edits.get();
+    }
+    /**
+     * waits until all edits handed to edit() have been applied and recalculated
+     * @throws InterruptedException
+     */
+    public void awaitEdits() throws InterruptedException {
+        if (background==null) return;
+        background.shutdown();
+        background.awaitTermination(Long.MAX_VALUE,TimeUnit.DAYS);
+        background=null;
+    }
+    private void evalQuietly(long cell){
+        try {
+            eval(DependencyGraph.row(cell),DependencyGraph.col(cell));
+        }catch(Exception e){
+            // errors are cached as values, so evaluation only fails on a bug
+            throw new IllegalStateException(e);
+        }
+    }
+    /**
+     * evaluates the cells level[from..to) of one level of the dependency graph, splitting the work
+     * among the threads of the pool
+     */
+    private class LevelTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD=64;
+        private List<Long> level;
+        private int from,to;
+        private BooleanSupplier cancelled;
+        LevelTask(List<Long> level,int from,int to,BooleanSupplier cancelled){
+            this.level=level;this.from=from;this.to=to;this.cancelled=cancelled;
+        }
+        @Override
+        protected void compute() {
+            if (cancelled.getAsBoolean()) return;
+            if (to-from<=THRESHOLD) {
+                for (int i=from;i<to;i++)
+                    evalQuietly(level.get(i));
+            }
+            else {
+                int mid=(from+to)>>>1;
+                invokeAll(new LevelTask(level,from,mid,cancelled),new LevelTask(level,mid,to,cancelled));
+            }
+        }
+    }
+    /**
+     * brings the console up to date with the cells and the cursor, drawing only what changed since
+     * the last call for the same screen
+     * @return the formula of the cell at the cursor
+     */
+    public String printToConsole(Screen screen, TextGraphics textGraphics) {
+        if (view==null || !view.shows(screen)) view = new ConsoleView(this,screen,textGraphics);
+        return view.draw(cursorrow,cursorcol);
     }
 
+    /**
+     * writes the formulae of all cells as ;-separated lines, keeping empty cells in their place
+     * @param filename
+     * @throws IOException
+     */
     public void writeToCSV(String filename) throws IOException {
-        var pw = new PrintWriter(new File(filename));
-        for (var r:formulae){
-            pw.println(Arrays.stream(r)
-                .filter(x->x.isPresent())
-                .map(x->"="+x.get().toString())
-                .collect(Collectors.joining(";")));
-        }
-        pw.close();
+        writeToCSV(filename,false);
     }
     /**
-     * evaluate the expression at position Row / Col, caching its value in value[][] as sideeffect; this is the entry point into an evaluation, starting without any already touched references
+     * writes all cells as ;-separated lines, keeping empty cells in their place
+     * @param filename
+     * @param values whether to write the values of formula cells instead of their formulae
+     * @throws IOException
+     */
+    public void writeToCSV(String filename, boolean values) throws IOException {
+        CsvExport.write(this,Path.of(filename),values);
+    }
+    /**
+     * evaluate the expression at position Row / Col, caching its value in the cell store as sideeffect; empty cells evaluate to 0;
+     * a dirty cell is evaluated together with the dirty cells it depends on, and nothing else
      * @param row
      * @param col
-     * @return
+     * @return the value, or an ErrorValue code if the evaluation fails, e.g. #CYCLE! for a cell
+     * under evaluation
      * @throws Exception
      */
     public int eval(int row, int col) throws Exception {
-        return eval(row,col,new HashSet<Expr>());
+        var state = cells.getState(row,col);
+        if (state==CellStore.DIRTY)
+            evaluate(DependencyGraph.key(row,col));
+        else if (state==CellStore.EVALUATING)
+            return ErrorValue.CYCLE.code;
+        else if (Metrics.enabled)
+            Metrics.cacheHit();
+        return cells.getValue(row,col);
     }
     /**
-     * evaluate the expression at position Row / Col, caching its value in value[][] as sideeffect; this version explicitely starts with an initial set of already touched references
-     * @param row
-     * @param col
-     * @param refset set of so far evaluated references i.o. to detect cycles
-     * @return final integer value
-     * @throws Exception
+     * stack of cells under evaluation, together with the position of the next precedent to visit for
+     * each: the index of the next single cell precedent or range, and the offset within that range;
+     * one per thread, reused across evaluations
      */
-    public int eval(int row, int col,Set<Expr> refset) throws Exception {
-        if (values[row][col]==null) {
-            if (!getFormula(row,col).isPresent())
-                values[row][col]=Optional.empty();
-            else {
-                var e = getFormula(row,col).get();
-                var hs = new HashSet<Expr>(refset);
-                if (refset.contains(e)) {
-                    ByteArrayOutputStream bo = new ByteArrayOutputStream();
-                    e.replicateTo(new PrintStream(bo));
-                    var str = refset.stream()
-                        .map(x->x.toString())
-                        .collect(Collectors.joining(","));
-                    throw new Exception("Circular evaluation during evaluation of "+bo.toString()+" : "+str);
+    private static class EvalStack {
+        long[] cells = new long[16];
+        int[] next = new int[16];
+        long[] offset = new long[16];
+        /** whether a precedent of the cell is under evaluation, i.e. the cell is part of a cycle */
+        boolean[] cyclic = new boolean[16];
+        int size=0;
+        void push(long cell){
+            if (size==cells.length) {
+                cells = Arrays.copyOf(cells,2*size);
+                next = Arrays.copyOf(next,2*size);
+                offset = Arrays.copyOf(offset,2*size);
+                cyclic = Arrays.copyOf(cyclic,2*size);
+            }
+            cells[size]=cell;
+            offset[size]=0;
+            cyclic[size]=false;
+            next[size++]=0;
+        }
+    }
+    private ThreadLocal<EvalStack> stacks = ThreadLocal.withInitial(EvalStack::new);
+    /**
+     * evaluates the DIRTY cell root after all of its (transitively) DIRTY precedents, without recursion:
+     * cells waiting for their precedents are marked EVALUATING and kept on an explicit stack, so that
+     * meeting an EVALUATING cell again means we have run into a cycle. The cell closing the cycle
+     * evaluates to #CYCLE!, which the other cells of the cycle take over from it as they read it.
+     * @param root
+     */
+    private void evaluate(long root){
+        var stack = stacks.get();
+        var graph = graph();
+        int base = stack.size;
+        push(stack,root);
+        descend: while (stack.size>base) {
+            int top = stack.size-1;
+            long cell = stack.cells[top];
+            var precedents = graph.precedentsOf(cell);
+            while (stack.next[top]<precedents.length) {
+                long p = precedents[stack.next[top]++];
+                int row = DependencyGraph.row(p), col = DependencyGraph.col(p);
+                var state = cells.getState(row,col);
+                if (state==CellStore.EVALUATING) {
+                    stack.cyclic[top] = true;
+                    cycle(stack,top,p);
+                }
+                else if (state==CellStore.DIRTY) {
+                    push(stack,p);
+                    continue descend;
+                }
+            }
+            var ranges = graph.rangesOf(cell);
+            while (stack.next[top]-precedents.length<ranges.length) {
+                int i = stack.next[top]-precedents.length;
+                long p = nextDirty(ranges[i],ranges[i+1],stack,top);
+                if (p<0) {
+                    stack.next[top]+=2;
+                    stack.offset[top]=0;
+                    continue;
+                }
+                if (cells.getState(DependencyGraph.row(p),DependencyGraph.col(p))==CellStore.EVALUATING) {
+                    stack.cyclic[top] = true;
+                    cycle(stack,top,p);
+                }
+                else {
+                    push(stack,p);
+                    continue descend;
+                }
+            }
+            // all precedents are cached now, except those of a cycle
+            int row = DependencyGraph.row(cell), col = DependencyGraph.col(cell);
+            if (stack.cyclic[top]) cells.setValue(row,col,ErrorValue.CYCLE.code);
+            else if (Metrics.enabled) {
+                var event = new Metrics.CellEvaluation();
+                event.begin();
+                long start = System.nanoTime();
+                cells.setValue(row,col,compute(row,col));
+                Metrics.evaluated(cell,start,event);
+            }
+            else cells.setValue(row,col,compute(row,col));
+            stack.size--;
+        }
+    }
+    /** the cells of each circular reference met by evaluate, by the key of every cell on it */
+    private final Map<Long,List<Long>> cycles = new ConcurrentHashMap<>();
+    /**
+     * records the circular reference closed by the cell on top of stack reading p, which is under
+     * evaluation further down the stack: the cells from p up to the top, and p again
+     */
+    private void cycle(EvalStack stack, int top, long p){
+        int i = top;
+        while (i>=0 && stack.cells[i]!=p) i--;
+        if (i<0) return;
+        var path = new ArrayList<Long>(top-i+2);
+        for (int j=i;j<=top;j++) path.add(stack.cells[j]);
+        path.add(p);
+        var cycle = Collections.unmodifiableList(path);
+        for (int j=i;j<=top;j++) cycles.put(stack.cells[j],cycle);
+    }
+    /**
+     * drops the circular references through the cells invalidated, which are met anew, if at all,
+     * when these are evaluated again
+     */
+    private void forgetCycles(Set<Long> invalidated){
+        if (!cycles.isEmpty()) cycles.keySet().removeAll(invalidated);
+    }
+    /**
+     * @return the keys of the cells of the circular reference through the cell at row and col, see
+     * DependencyGraph.key, starting and ending with the same cell; empty unless the cell is part of
+     * a circular reference met when it was evaluated last
+     */
+    List<Long> cyclePath(int row, int col){
+        return cycles.getOrDefault(DependencyGraph.key(row,col),List.of());
+    }
+    /**
+     * @return the value of the formula at row and col, whose precedents are cached; #VALUE! if the
+     * evaluation fails
+     */
+    private int compute(int row, int col){
+        var e = cells.getFormula(row,col);
+        var origin = new Origin(row,col);
+        try {
+            return compiled ? e.compiled().eval(origin) : e.eval(origin);
+        }catch(Exception x){
+            return ErrorValue.VALUE.code;
+        }
+    }
+    /**
+     * the sheet as seen from the cell whose formula is evaluated, against which the relative
+     * references of the formula are resolved
+     */
+    private class Origin implements Expr.Context {
+        private final int row,col;
+        Origin(int row, int col){
+            this.row=row;
+            this.col=col;
+        }
+        @Override
+        public int eval(int row, int col) throws Exception {
+            return Spreadsheet.this.eval(row,col);
+        }
+        @Override
+        public void aggregate(Expr.Range range, Aggregate.Accumulator acc) {
+            Spreadsheet.this.aggregate(range,acc);
+        }
+        @Override
+        public int[] values(Expr.Range range) {
+            return Spreadsheet.this.values(range);
+        }
+        @Override
+        public long epoch() {
+            return epoch;
+        }
+        @Override
+        public int originRow() {
+            return row;
+        }
+        @Override
+        public int originCol() {
+            return col;
+        }
+    }
+    /**
+     * puts the DIRTY cell on stack and marks it EVALUATING; a formula loaded as text is parsed first,
+     * so that its precedents are known before they are visited
+     */
+    private void push(EvalStack stack, long cell){
+        int row = DependencyGraph.row(cell), col = DependencyGraph.col(cell);
+        try {
+            resolve(row,col);
+        }catch(Expr.Parser.Fail f){
+            // the text stays in the cell, evaluating to the error, and has no precedents
+        }
+        stack.push(cell);
+        cells.setState(row,col,CellStore.EVALUATING);
+    }
+    /**
+     * scans the range from..to column by column, starting at the offset recorded for frame top of
+     * stack and skipping unpopulated blocks, for the next cell that is DIRTY or EVALUATING
+     * @return key of that cell, with the offset behind it recorded in stack, or -1 if there is none
+     */
+    private long nextDirty(long from, long to, EvalStack stack, int top){
+        int row0 = DependencyGraph.row(from), col0 = DependencyGraph.col(from);
+        int row1 = DependencyGraph.row(to),   col1 = DependencyGraph.col(to);
+        long height = row1-row0+1, size = height*(col1-col0+1);
+        long offset = stack.offset[top];
+        while (offset<size) {
+            int col = col0+(int)(offset/height);
+            int first = row0+(int)(offset%height), last = Math.min(row1,first|(CellStore.BLOCK_ROWS-1));
+            var b = cells.block(first,col);
+            if (b!=null && b.hasPending(col)) {
+                int base = CellStore.index(first,col);
+                for (int row=first; row<=last; row++) {
+                    var state = b.state[base+row-first];
+                    if (state==CellStore.DIRTY || state==CellStore.EVALUATING) {
+                        stack.offset[top] = offset+(row-first)+1;
+                        return DependencyGraph.key(row,col);
+                    }
                 }
-                hs.add(e);
-                // caches evaluated formula[x][y] in value[x][y]
-                values[row][col]=Optional.of(e.eval(this, hs));
             }
+            offset += last-first+1;
         }
-        return values[row][col].get();
+        stack.offset[top] = offset;
+        return -1;
+    }
+    /**
+     * feeds the values of all cells within range into acc, column by column;
+     * all cells of the range must have been evaluated before
+     */
+    @Override
+    public void aggregate(Expr.Range range, Aggregate.Accumulator acc) {
+        for (int col=range.from.col; col<=range.to.col; col++)
+            cells.aggregate(col,range.from.row,range.to.row,acc);
+    }
+    /**
+     * @return the values of the populated cells within range, column by column, skipping
+     * unpopulated blocks; all cells of the range must have been evaluated before
+     */
+    @Override
+    public int[] values(Expr.Range range) {
+        var values = new int[16];
+        int n = 0;
+        for (int col=range.from.col; col<=range.to.col; col++)
+            for (int row=range.from.row; row<=range.to.row; row++) {
+                var b = cells.block(row,col);
+                if (b==null) {
+                    row |= CellStore.BLOCK_ROWS-1;
+                    continue;
+                }
+                int i = CellStore.index(row,col);
+                if (b.state[i]==CellStore.EMPTY) continue;
+                if (n==values.length) values = Arrays.copyOf(values,2*n);
+                values[n++] = b.values[i];
+            }
+        return Arrays.copyOf(values,n);
     }
     /**
      * Takes a string representation of a spreadsheet formula or value (e.g. =5*A1+B5 or 42) and returns a literal formula object
@@ -201,66 +769,113 @@ public class Spreadsheet implements Expr.Context {
                 }
             }
             else {
-                return Optional.of(new Expr.Const(Integer.parseInt(cell)));
+                return Optional.of(new Expr.Const(ErrorValue.parse(cell)));
             }
         }
     }
-    public static Spreadsheet parseCSV(String filename) throws FileNotFoundException,IOException,NumberFormatException {
+    public static Spreadsheet parseCSV(String filename) throws IOException,NumberFormatException {
+        return parseCSV(filename,null);
+    }
+    /**
+     * loads a sheet of ;-separated cells, streaming the file through a fixed size buffer
+     * @param filename
+     * @param progress notified after each chunk of the file, may be null
+     * @return
+     * @throws IOException
+     * @throws NumberFormatException if a cell holds neither a formula nor an integer
+     */
+    public static Spreadsheet parseCSV(String filename, CsvImport.Progress progress) throws IOException,NumberFormatException {
+        return parseCSV(filename,1,progress);
+    }
+    /**
+     * loads a sheet of ;-separated cells; with a parallelism above 1, chunks of the file are scanned
+     * and their formulae parsed concurrently, and the sheet keeps using that many threads to recalculate
+     * @param filename
+     * @param parallelism
+     * @param progress notified after each chunk of the file, may be null
+     * @return
+     * @throws IOException
+     * @throws NumberFormatException if a cell holds neither a formula nor an integer
+     */
+    public static Spreadsheet parseCSV(String filename, int parallelism, CsvImport.Progress progress) throws IOException,NumberFormatException {
         var result = new Spreadsheet();
-        var buffy = new BufferedReader(new FileReader(filename));
-        var row =0;
-        while (buffy.ready() && row < Spreadsheet.ROWS) {
-            var scanner = new Scanner(buffy.readLine()).useDelimiter(";");
-            var col = 0;
-            while(scanner.hasNext()){
-                result.setFormula(row,col++,parseCell(scanner.next()));        
-            }
-            row++;
-            scanner.close();
-        }
-        buffy.close();
+        result.setParallelism(parallelism);
+        CsvImport.read(Path.of(filename),result,result.pool,progress);
         return result;
     }
     public static void main(String[] args) throws Exception{
-        var e = parseCSV(args[0]);
+        // switched on by -Dspreadsheet.metrics=true, or later through JMX
+        Metrics.register();
+        // edits are journaled next to the sheet; if the last session did not end normally, its
+        // snapshot and journal hold the edits that have not been saved
+        var journal = new Journal(Path.of(args[0]));
+        Spreadsheet e = journal.snapshot();
+        if (e==null && args[0].endsWith(".wb")) e = Workbook.read(Path.of(args[0]));
+        else if (e==null) {
+            e = parseCSV(args[0],Integer.getInteger("spreadsheet.parallelism",1),(read,total,rows) ->
+                System.err.printf("\rloading %s: %d%% (%,d rows)",args[0],total==0 ? 100 : 100*read/total,rows));
+            System.err.println();
+        }
+        int recovered = journal.replay(e);
+        if (recovered>0) System.err.println("recovered "+recovered+" edits of the last session");
+        e.setJournal(journal);
         var terminal = new DefaultTerminalFactory().createTerminal();
         var screen = new TerminalScreen(terminal);
         screen.startScreen();
         var textGraphics = screen.newTextGraphics();
-        KeyStroke key;
         final WindowBasedTextGUI textGUI = new MultiWindowTextGUI(screen);
-        do {
+        // the loaded cells are computed in the background, like the cells affected by an edit, those
+        // on screen first; without settle, only the cells shown and their precedents are computed
+        e.edit(s -> {});
+        while (true) {
             var content = e.printToConsole(screen,textGraphics);
-            screen.refresh();
-            key=screen.readInput();
+            screen.refresh(Screen.RefreshType.DELTA);
+            // while recalculating, repaint every frame to show the values as they arrive
+            var key = e.recalculating() ? screen.pollInput() : screen.readInput();
+            if (key==null) {
+                Thread.sleep(FRAME_MILLIS);
+                continue;
+            }
+            if (key.getKeyType()==KeyType.Escape) break;
             switch (key.getKeyType()) {
-                case ArrowDown:  e.cursorrow=(16+e.cursorrow+1)%16; break;
-                case ArrowUp:    e.cursorrow=(16+e.cursorrow-1)%16; break;
-                case ArrowLeft:  e.cursorcol=(16+e.cursorcol-1)%16; break;
-                case ArrowRight: e.cursorcol=(16+e.cursorcol+1)%16; break;
+                case ArrowDown:  e.cursorrow=Math.min(e.cursorrow+1,Expr.Ref.MAX_ROWS-1); break;
+                case ArrowUp:    e.cursorrow=Math.max(e.cursorrow-1,0); break;
+                case ArrowLeft:  e.cursorcol=Math.max(e.cursorcol-1,0); break;
+                case ArrowRight: e.cursorcol=Math.min(e.cursorcol+1,Expr.Ref.MAX_COLS-1); break;
+                case PageDown:   e.cursorrow=Math.min(e.cursorrow+e.view.rows(),Expr.Ref.MAX_ROWS-1); break;
+                case PageUp:     e.cursorrow=Math.max(e.cursorrow-e.view.rows(),0); break;
+                case Home:       e.cursorrow=0; e.cursorcol=0; break;
                 case Enter: 
                       String input = TextInputDialog.showDialog(textGUI,"Content for Cell","edit the content of Cell ","="+content);
-                      e.setFormula(e.cursorrow,e.cursorcol,parseCell(input));
-                      e.purgeValues();                     
+                      final int row=e.cursorrow, col=e.cursorcol;
+                      final var formula=parseCell(input);
+                      e.edit(s -> s.setFormula(row,col,formula));
+                      // the dialog has been drawn over the sheet
+                      e.view.invalidate();
                       break;
                 default:
             }
         }
-        while (key.getKeyType()!=KeyType.Escape);
         screen.stopScreen();
         screen.close();
+        e.awaitEdits();
         e.writeToCSV("out.csv");
+        // saved, so there is nothing left to recover
+        journal.discard();
         System.out.println(e);
+        if (Metrics.enabled) System.err.println(Metrics.get().report());
    }
    @Override
    public String toString() {
-       return Arrays.stream(values)
-               .map(line -> Optional.ofNullable(line)
-                       .map(line2 -> Arrays.stream(line2)
-                               .map(c -> c.map(cc -> String.format("%" + 3 + "d", cc))
-                               .orElse("   "))
-                               .collect(Collectors.joining(" - ")))
-                       .orElse(""))
+       return IntStream.range(0,cells.rows())
+               .mapToObj(row -> IntStream.range(0,cells.cols())
+                       .mapToObj(col -> cells.getState(row,col)==CellStore.VALID
+                               ? text(cells.getValue(row,col))
+                               : "   ")
+                       .collect(Collectors.joining(" - ")))
                .collect(Collectors.joining("\n"));
    }
+   private static String text(int value){
+       return ErrorValue.is(value) ? ErrorValue.of(value).toString() : String.format("%" + 3 + "d", value);
+   }
 }  
\ No newline at end of file
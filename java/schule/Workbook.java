@@ -0,0 +1,167 @@
+package schule;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+
+/**
+ * Binary snapshot of a sheet, which opens without parsing a single formula. The file holds the
+ * populated blocks of the CellStore one after the other, each with its columnar values and states
+ * and the formulae of its cells in the pre-order encoding of Expr.writeTo, followed by the
+ * precedents of all formula cells.
+ * Reading maps the file into memory and merely copies the values and states of the blocks, so cached
+ * values are VALID right away, while DIRTY cells are left to the next recalculation; the formulae of
+ * a block are decoded once one of them is needed, and the dependency graph is built on the first
+ * edit or recalculation.
+ * <pre>
+ * int MAGIC, int VERSION, int number of blocks
+ * per block:        int row, int col of its top left cell, int[BLOCK_SIZE] values, byte[BLOCK_SIZE] states,
+ *                   int length of the rest of the block, int number of formulae,
+ *                   per formula: short index within the block, encoded expression
+ * int number of formula cells
+ * per formula cell: long key, int n, n long keys of the cells it references,
+ *                   int m, m long corner keys of the ranges it reads
+ * </pre>
+ * All numbers are big endian.
+ */
+public class Workbook {
+    private static final int MAGIC=0x53535742; // SSWB
+    private static final int VERSION=1;
+
+    /**
+     * writes sheet to file; cells that have not been evaluated so far are stored DIRTY
+     * @param sheet
+     * @param file
+     * @throws IOException
+     */
+    public static void write(Spreadsheet sheet, Path file) throws IOException {
+        var cells = sheet.cells();
+        var blocks = cells.blocks();
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file),1<<16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(blocks.size());
+            var columns = ByteBuffer.allocate(5*CellStore.BLOCK_SIZE);
+            var encoded = new ByteArrayOutputStream();
+            var formulae = new DataOutputStream(encoded);
+            int formulaCells = 0;
+            for (var b:blocks) {
+                out.writeInt(b.row);
+                out.writeInt(b.col);
+                columns.clear();
+                columns.asIntBuffer().put(b.values);
+                columns.position(4*CellStore.BLOCK_SIZE);
+                for (var s:b.state)
+                    columns.put(s==CellStore.EVALUATING ? CellStore.DIRTY : s);
+                out.write(columns.array());
+                encoded.reset();
+                int count = 0;
+                for (int i=0;i<CellStore.BLOCK_SIZE;i++) {
+                    var f = formula(cells,b,i);
+                    if (f==null) continue;
+                    formulae.writeShort(i);
+                    f.writeTo(formulae);
+                    count++;
+                }
+                out.writeInt(4+encoded.size());
+                out.writeInt(count);
+                encoded.writeTo(out);
+                formulaCells += count;
+            }
+            out.writeInt(formulaCells);
+            for (var b:blocks)
+                for (int i=0;i<CellStore.BLOCK_SIZE;i++) {
+                    var f = formula(cells,b,i);
+                    if (f==null) continue;
+                    out.writeLong(DependencyGraph.key(row(b,i),col(b,i)));
+                    var refs = DependencyGraph.references(f);
+                    out.writeInt(refs.size());
+                    for (var r:refs)
+                        out.writeLong(r);
+                    var ranges = DependencyGraph.ranges(f);
+                    out.writeInt(ranges.length);
+                    for (var r:ranges)
+                        out.writeLong(r);
+                }
+        }
+    }
+    private static int row(CellStore.Block b, int i){
+        return b.row+(i&(CellStore.BLOCK_ROWS-1));
+    }
+    private static int col(CellStore.Block b, int i){
+        return b.col+(i>>>CellStore.ROW_SHIFT);
+    }
+    /**
+     * @return the formula of cell i of block b as entered, or null
+     */
+    private static Expr formula(CellStore cells, CellStore.Block b, int i){
+        if (b.state[i]==CellStore.EMPTY) return null;
+        var formula = cells.getFormula(row(b,i),col(b,i));
+        return formula==null ? null : formula.at(row(b,i),col(b,i));
+    }
+    /**
+     * opens a workbook written by write
+     * @param file
+     * @return
+     * @throws IOException if file is no workbook, or larger than 2 GiB
+     */
+    public static Spreadsheet read(Path file) throws IOException {
+        var sheet = new Spreadsheet();
+        var cells = sheet.cells();
+        ByteBuffer in;
+        try (var channel = FileChannel.open(file,StandardOpenOption.READ)) {
+            if (channel.size()>Integer.MAX_VALUE) throw new IOException(file+" is larger than 2 GiB");
+            // the mapping stays valid after the channel has been closed
+            in = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+        }
+        if (in.remaining()<8 || in.getInt()!=MAGIC) throw new IOException(file+" is no workbook");
+        var version = in.getInt();
+        if (version!=VERSION) throw new IOException(file+" has unsupported version "+version);
+        for (int n=in.getInt(); n>0; n--) {
+            int row = in.getInt(), col = in.getInt();
+            var b = cells.allocate(row,col);
+            in.asIntBuffer().get(b.values);
+            in.position(in.position()+4*CellStore.BLOCK_SIZE);
+            in.get(b.state);
+            int length = in.getInt(), start = in.position();
+            in.position(start+length);
+            cells.loaded(b,in.getInt(start)==0 ? null : () -> decode(sheet,b,in,start));
+            for (int i=0;i<CellStore.BLOCK_SIZE;i++)
+                if (b.state[i]==CellStore.DIRTY) sheet.loadDirty(row(b,i),col(b,i));
+        }
+        int graph = in.position();
+        sheet.loadGraph(g -> readGraph(in.duplicate().position(graph),g));
+        return sheet;
+    }
+    /**
+     * @return the formulae of block b, decoded from the section at start of in and optimized for sheet
+     */
+    private static Expr[] decode(Spreadsheet sheet, CellStore.Block b, ByteBuffer in, int start){
+        var section = in.duplicate().position(start);
+        var formulae = new Expr[CellStore.BLOCK_SIZE];
+        for (int n=section.getInt(); n>0; n--) {
+            int i = section.getShort();
+            formulae[i] = sheet.optimize(Expr.readFrom(section),row(b,i),col(b,i));
+        }
+        return formulae;
+    }
+    private static void readGraph(ByteBuffer in, DependencyGraph graph){
+        for (int n=in.getInt(); n>0; n--) {
+            var cell = in.getLong();
+            var refs = new HashSet<Long>();
+            for (int i=in.getInt(); i>0; i--)
+                refs.add(in.getLong());
+            var ranges = new long[in.getInt()];
+            for (int i=0;i<ranges.length;i++)
+                ranges[i]=in.getLong();
+            graph.setPrecedents(cell,refs,ranges);
+        }
+    }
+}